@@ -22,6 +22,8 @@ import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.FaceDetectionListener;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.Size;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.View;
@@ -30,6 +32,11 @@ import com.google.android.imaging.pixelvisualcorecamera.common.Utils;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the state of an API 1 camera.
@@ -43,12 +50,36 @@ final class Camera1Controller {
   private static final int STATE_ACQUIRED = 1;
   private static final int STATE_PREVIEW = 2;
   private static final int STATE_CAPTURE = 3;
+  private static final int STATE_ACQUIRING = 4;
   private static final String[] STATE_NAMES = {
-      "Not acquired", "Acquired", "Preview", "Capture"
+      "Not acquired", "Acquired", "Preview", "Capture", "Acquiring"
   };
 
+  /**
+   * Opens, configures and releases cameras off the main thread, one at a time in request order,
+   * across all controllers. The thread has no looper, so the camera delivers its callbacks on
+   * the main thread; it exits when idle.
+   */
+  private static final Executor cameraExecutor = new ThreadPoolExecutor(
+      0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+      runnable -> new Thread(runnable, "Camera1Opener"));
+
   private final View captureButton;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
   private Camera camera;
+
+  /** The acquire in progress, while in STATE_ACQUIRING. */
+  private PendingAcquire pendingAcquire;
+
+  /** The parameters of the acquired camera. Null while no camera is acquired. */
+  private CameraParametersCache parametersCache;
+
+  /** Steps the zoom for gestures. Null if the camera does not support smooth zoom. */
+  private SmoothZoomEngine smoothZoom;
+
+  /** Optional analysis of preview frames. */
+  private FrameAnalyzer frameAnalyzer;
+  private PreviewFrameProcessor frameProcessor;
   private int state = STATE_NOT_ACQUIRED;
   private int cameraId;
 
@@ -58,6 +89,44 @@ final class Camera1Controller {
   private final FaceDetectionListener faceDetectionListener = (faces, camera1) ->
       Log.d(TAG, "detected " + faces.length + " faces");
 
+  /**
+   * Hands a camera opened on the cameraExecutor over to the main thread. Whoever cancels the
+   * acquire releases the camera: the worker if it opens after the cancel, otherwise the
+   * cancelling thread, through the cameraExecutor.
+   */
+  private static final class PendingAcquire {
+    private Camera camera;
+    private boolean cancelled;
+
+    synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    /** Stores the opened camera. Returns false, keeping nothing, if already cancelled. */
+    synchronized boolean offer(Camera openedCamera) {
+      if (cancelled) {
+        return false;
+      }
+      camera = openedCamera;
+      return true;
+    }
+
+    /** Cancels the acquire. Returns the camera already opened for it, if any. */
+    synchronized Camera cancel() {
+      cancelled = true;
+      Camera openedCamera = camera;
+      camera = null;
+      return openedCamera;
+    }
+
+    /** Takes the opened camera. Returns null if the acquire was cancelled. */
+    synchronized Camera take() {
+      Camera openedCamera = camera;
+      camera = null;
+      return openedCamera;
+    }
+  }
+
   public interface CaptureCallback {
 
     /**
@@ -68,6 +137,24 @@ final class Camera1Controller {
     void onPictureTaken(byte[] bytes, Camera camera);
   }
 
+  public interface AcquireCallback {
+
+    /** The camera is acquired and configured, and the preview may be started. Main thread. */
+    void onCameraReady();
+
+    /** The camera could not be opened or configured. Main thread. */
+    void onCameraFailed(Exception e);
+  }
+
+  public interface FrameAnalyzer {
+
+    /**
+     * Analyzes a preview frame in NV21 format. Called on a worker thread; the array is reused
+     * for later frames once this returns, so it must not be retained.
+     */
+    void analyze(byte[] nv21, int width, int height);
+  }
+
   public Camera1Controller(View captureButton) {
     this.captureButton = captureButton;
     moveToState(STATE_NOT_ACQUIRED);
@@ -77,15 +164,9 @@ final class Camera1Controller {
   // Configuration
   // ===============================================================================================
 
-  /**
-   * Configures camera parameters common to all configurations.
-   * Must be called before preview started.
-   */
-  public void setDefaultParameters(int displayRotation) {
-    Log.i(TAG, "setDefaultParameters");
-    assertState(STATE_ACQUIRED,
-          "Default parameters may only be set before a preview is started");
-
+  /** Sets the default parameters on the cache, without flushing. May be called on any thread. */
+  private static void applyDefaultParameters(
+      Camera camera, CameraParametersCache parametersCache, int cameraId, int displayRotation) {
     CameraInfo info = new CameraInfo();
     Camera.getCameraInfo(cameraId, info);
     boolean lensFacingFront = (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
@@ -93,30 +174,34 @@ final class Camera1Controller {
     int previewOrientationDegrees =
         Orientation.getPreviewOrientation(lensFacingFront, displayRotation, info.orientation);
     camera.setDisplayOrientation(previewOrientationDegrees);
-    Parameters params = camera.getParameters();
+    Parameters params = parametersCache.get();
 
     // We happen to know the preview sizes available for Pixel 2.
     params.setPreviewSize(Utils.MAX_PREVIEW_WIDTH, Utils.MAX_PREVIEW_HEIGHT);
+    parametersCache.markDirty(CameraParametersCache.KEY_PREVIEW_SIZE);
     params.setRotation(
         Orientation.getOutputOrientation(lensFacingFront, displayRotation, info.orientation));
+    parametersCache.markDirty(CameraParametersCache.KEY_ROTATION);
 
     // Continuous picture is not supported Pixel 2's front camera.
     List<String> supportFocusModes = params.getSupportedFocusModes();
     if (supportFocusModes.contains(Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
       Log.i(TAG, "setting continuous picture focus mode");
       params.setFocusMode(Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+      parametersCache.markDirty(CameraParametersCache.KEY_FOCUS_MODE);
     }
 
     // HDR+: Flash mode must be off.
     params.setFlashMode(Parameters.FLASH_MODE_OFF);
+    parametersCache.markDirty(CameraParametersCache.KEY_FLASH_MODE);
 
     // HDR+: Color effect must be none.
     params.setColorEffect(Parameters.EFFECT_NONE);
+    parametersCache.markDirty(CameraParametersCache.KEY_EFFECT);
 
     // HDR+: White balance must be auto.
     params.setWhiteBalance(Parameters.WHITE_BALANCE_AUTO);
-
-    camera.setParameters(params);
+    parametersCache.markDirty(CameraParametersCache.KEY_WHITE_BALANCE);
   }
 
   /** Set the preview display before the preview is started. */
@@ -129,17 +214,94 @@ final class Camera1Controller {
   // Camera Control
   // ===============================================================================================
 
-  /** Acquire the camera. Note, some parameters must be set before starting a preview. */
-  public void acquireCamera(int cameraId) throws IOException {
-    Log.i(TAG, "acquireCamera");
+  /**
+   * Opens the camera and applies the default parameters, the first supported picture size and
+   * the zoom level on a background thread, so the main thread does not wait for the camera
+   * service. The callback is called on the main thread once the camera is ready for a preview.
+   * The acquire is cancelled by #releaseCamera.
+   */
+  public void acquireCameraAsync(
+      int cameraId, int displayRotation, int zoomLevel, AcquireCallback callback) {
+    Log.i(TAG, "acquireCameraAsync");
     assertState(STATE_NOT_ACQUIRED, "Attempting to acquire camera while already holding a camera");
+    PendingAcquire acquire = new PendingAcquire();
+    pendingAcquire = acquire;
+    moveToState(STATE_ACQUIRING);
+    long requestTimeNs = System.nanoTime();
+    cameraExecutor.execute(() -> {
+      if (acquire.isCancelled()) {
+        return;
+      }
+      Camera openedCamera = null;
+      CameraParametersCache cache;
+      try {
+        openedCamera = Camera.open(cameraId);
+        if (openedCamera == null) {
+          throw new IOException("Failed to open camera");
+        }
+        cache = new CameraParametersCache(openedCamera);
+        applyDefaultParameters(openedCamera, cache, cameraId, displayRotation);
+        Parameters params = cache.get();
+        Size pictureSize = params.getSupportedPictureSizes().get(0);
+        params.setPictureSize(pictureSize.width, pictureSize.height);
+        cache.markDirty(CameraParametersCache.KEY_PICTURE_SIZE);
+        params.setZoom(Math.min(zoomLevel, params.getMaxZoom()));
+        cache.markDirty(CameraParametersCache.KEY_ZOOM);
+        // A single parameter write for all of the above.
+        cache.flush();
+      } catch (IOException | RuntimeException e) {
+        Log.w(TAG, "failed to acquire camera " + cameraId, e);
+        if (openedCamera != null) {
+          openedCamera.release();
+        }
+        mainHandler.post(() -> onCameraOpenFailed(acquire, e, callback));
+        return;
+      }
+      if (!acquire.offer(openedCamera)) {
+        // Released here, before the executor runs a later acquire's open.
+        Log.i(TAG, "acquire was cancelled, releasing camera " + cameraId);
+        openedCamera.release();
+        return;
+      }
+      mainHandler.post(() -> onCameraOpened(acquire, cameraId, cache, requestTimeNs, callback));
+    });
+  }
+
+  private void onCameraOpened(PendingAcquire acquire, int cameraId,
+      CameraParametersCache cache, long requestTimeNs, AcquireCallback callback) {
+    // Null if releaseCamera cancelled the acquire; it has queued the release already.
+    Camera openedCamera = acquire.take();
+    if (openedCamera == null) {
+      return;
+    }
+    pendingAcquire = null;
+    installCamera(cameraId, openedCamera, cache);
+    Log.i(TAG, String.format(Locale.US, "camera %d ready after %.1fms",
+        cameraId, (System.nanoTime() - requestTimeNs) / 1e6));
+    callback.onCameraReady();
+  }
+
+  private void onCameraOpenFailed(PendingAcquire acquire, Exception e, AcquireCallback callback) {
+    if (acquire != pendingAcquire) {
+      return;
+    }
+    pendingAcquire = null;
+    moveToState(STATE_NOT_ACQUIRED);
+    callback.onCameraFailed(e);
+  }
+
+  /** Takes over an opened camera. */
+  private void installCamera(int cameraId, Camera openedCamera, CameraParametersCache cache) {
     this.cameraId = cameraId;
-    camera = Camera.open(cameraId);
-    if (camera != null) {
-      moveToState(STATE_ACQUIRED);
-    } else {
-      throw new IOException("Failed to open camera");
+    camera = openedCamera;
+    parametersCache = cache;
+    Parameters params = parametersCache.get();
+    if (params.isSmoothZoomSupported()) {
+      // The camera changes the zoom itself; keep the cached parameters in sync.
+      smoothZoom = new SmoothZoomEngine(camera, params.getZoom(),
+          zoomLevel -> parametersCache.get().setZoom(zoomLevel));
     }
+    moveToState(STATE_ACQUIRED);
     camera.setFaceDetectionListener(faceDetectionListener);
   }
 
@@ -147,6 +309,7 @@ final class Camera1Controller {
   public void startPreview() {
     Log.i(TAG, "startPreview");
     assertState(STATE_ACQUIRED, "Preview may only be started when camera is acquired");
+    startFrameAnalysis();
     camera.startPreview();
     moveToState(STATE_PREVIEW);
   }
@@ -154,7 +317,10 @@ final class Camera1Controller {
   /** Stops the preview stream. */
   public void stopPreview() {
     Log.i(TAG, "stopPreview");
-    assertNotState(STATE_NOT_ACQUIRED, "Preview may only be started when camera is acquired");
+    assertReady("Preview may only be stopped when camera is acquired");
+    if (frameProcessor != null) {
+      frameProcessor.detach();
+    }
     camera.stopPreview();
     moveToState(STATE_ACQUIRED);
   }
@@ -168,6 +334,12 @@ final class Camera1Controller {
   public void takePicture(CaptureCallback captureCallback) {
     Log.i(TAG, "takePicture");
     assertState(STATE_PREVIEW, "Preview must be started before taking a picture");
+    // Apply a pending zoom change to the shot.
+    parametersCache.flush();
+    // The preview stops for the capture; frames are analyzed again once it is restarted.
+    if (frameProcessor != null) {
+      frameProcessor.detach();
+    }
 
     Camera.PictureCallback internalCallback = (bytes, cameraId) -> {
       Log.d(TAG, "takePicture: callback started");
@@ -180,11 +352,32 @@ final class Camera1Controller {
     moveToState(STATE_CAPTURE);
   }
 
-  /** Release the camera. */
+  /**
+   * Release the camera, or cancel an acquire in progress. The camera is released on the
+   * background thread, before any later acquire opens a camera.
+   */
   public void releaseCamera() {
     Log.i(TAG, "releaseCamera");
     assertNotState(STATE_NOT_ACQUIRED, "Attempting to release camera while not holding a camera");
-    camera.release();
+    if (state == STATE_ACQUIRING) {
+      Camera openedCamera = pendingAcquire.cancel();
+      pendingAcquire = null;
+      if (openedCamera != null) {
+        // Queued ahead of any later acquire, so the camera is free when that one opens.
+        Log.i(TAG, "acquire was cancelled, releasing camera " + cameraId);
+        cameraExecutor.execute(openedCamera::release);
+      }
+      moveToState(STATE_NOT_ACQUIRED);
+      return;
+    }
+    if (smoothZoom != null) {
+      smoothZoom.release();
+      smoothZoom = null;
+    }
+    releaseFrameProcessor();
+    parametersCache.discard();
+    parametersCache = null;
+    cameraExecutor.execute(camera::release);
     camera = null;
     moveToState(STATE_NOT_ACQUIRED);
   }
@@ -204,13 +397,13 @@ final class Camera1Controller {
   }
 
   public int getMaxZoom() {
-    assertNotState(STATE_NOT_ACQUIRED, "Camera must be acquired before querying zoom");
-    return camera.getParameters().getMaxZoom();
+    assertReady("Camera must be acquired before querying zoom");
+    return parametersCache.get().getMaxZoom();
   }
 
   public int[] getZoomRatios() {
-    assertNotState(STATE_NOT_ACQUIRED, "Camera must be acquired before querying zoom");
-    List<Integer> ratios = camera.getParameters().getZoomRatios();
+    assertReady("Camera must be acquired before querying zoom");
+    List<Integer> ratios = parametersCache.get().getZoomRatios();
     int[] zoomRatios = new int[ratios.size()];
     Iterator<Integer> it = ratios.iterator();
     for (int i = 0; i < ratios.size(); i++) {
@@ -219,12 +412,87 @@ final class Camera1Controller {
     return zoomRatios;
   }
 
+  /**
+   * Sets the zoom level. The change is written with the next display frame, so a pinch gesture
+   * results in at most one parameter write per frame.
+   */
   public void setZoom(int level) {
-    assertNotState(STATE_NOT_ACQUIRED, "Camera must be acquired before modifying zoom");
+    assertReady("Camera must be acquired before modifying zoom");
+    if (smoothZoom != null && smoothZoom.isZooming()) {
+      // The zoom may not be written while a smooth zoom runs.
+      smoothZoom.zoomTo(level);
+      return;
+    }
+    Parameters params = parametersCache.get();
+    if (params.getZoom() == level) {
+      return;
+    }
     Log.d(TAG, "setZoom(" + level + ")");
-    Parameters params = camera.getParameters();
     params.setZoom(level);
-    camera.setParameters(params);
+    parametersCache.markDirty(CameraParametersCache.KEY_ZOOM);
+    if (smoothZoom != null) {
+      smoothZoom.setCurrentZoom(level);
+    }
+    parametersCache.scheduleFlush();
+  }
+
+  /**
+   * Zooms in response to a gesture. Uses smooth zoom while the preview is running, if the
+   * camera supports it, retargeting a zoom in progress. Otherwise falls back to #setZoom.
+   */
+  public void zoomTo(int level) {
+    assertReady("Camera must be acquired before modifying zoom");
+    if (smoothZoom != null && state == STATE_PREVIEW) {
+      smoothZoom.zoomTo(level);
+    } else {
+      setZoom(level);
+    }
+  }
+
+  // ===============================================================================================
+  // Frame Analysis
+  // ===============================================================================================
+
+  /**
+   * Sets the analyzer of preview frames, or null to stop analyzing. Frames that arrive while
+   * the analyzer is still busy with an earlier one are dropped. May be called in any state.
+   */
+  public void setFrameAnalyzer(FrameAnalyzer analyzer) {
+    Log.i(TAG, "setFrameAnalyzer(" + analyzer + ")");
+    releaseFrameProcessor();
+    frameAnalyzer = analyzer;
+    if (state == STATE_PREVIEW) {
+      startFrameAnalysis();
+    }
+  }
+
+  /** Returns the processor feeding preview frames to the analyzer, null if there is none. */
+  PreviewFrameProcessor getFrameProcessor() {
+    return frameProcessor;
+  }
+
+  private void startFrameAnalysis() {
+    if (frameAnalyzer == null) {
+      return;
+    }
+    Size previewSize = parametersCache.get().getPreviewSize();
+    if (frameProcessor != null
+        && !frameProcessor.matchesSize(previewSize.width, previewSize.height)) {
+      // The buffers are sized for the old preview size.
+      releaseFrameProcessor();
+    }
+    if (frameProcessor == null) {
+      frameProcessor = new PreviewFrameProcessor(camera, previewSize.width, previewSize.height,
+          PreviewFrameProcessor.DEFAULT_BUFFER_COUNT, frameAnalyzer);
+    }
+    frameProcessor.attach();
+  }
+
+  private void releaseFrameProcessor() {
+    if (frameProcessor != null) {
+      frameProcessor.release();
+      frameProcessor = null;
+    }
   }
 
   // ===============================================================================================
@@ -257,6 +525,11 @@ final class Camera1Controller {
           captureButton.setEnabled(false);
         }
         break;
+      case STATE_ACQUIRING:
+        if (captureButton != null) {
+          captureButton.setEnabled(false);
+        }
+        break;
       default:
         throw new IllegalStateException("unrecognized state: " + newState);
     }
@@ -277,32 +550,31 @@ final class Camera1Controller {
     }
   }
 
-  /** Returns true if the camera is currently acquired. */
+  /** Asserts that a camera is held, i.e., acquired and not still being acquired. */
+  private void assertReady(String message) {
+    if (!isCameraReady()) {
+      throw new IllegalStateException(String.format("Current state: %d, %s", state, message));
+    }
+  }
+
+  /** Returns true if the camera is currently acquired, or being acquired. */
   public boolean isAcquired() {
     return state != STATE_NOT_ACQUIRED;
   }
 
+  /** Returns true if the camera is acquired and configured, see #acquireCameraAsync. */
+  public boolean isCameraReady() {
+    return state != STATE_NOT_ACQUIRED && state != STATE_ACQUIRING;
+  }
+
   /** Returns true if the preview is active. */
   public boolean isPreviewActive() {
     return state == STATE_PREVIEW;
   }
 
-  public android.util.Size[] getSupportedPictureSizes() {
-    assertNotState(STATE_NOT_ACQUIRED, "A camera must be acquired before fetching parameters");
-    List<Size> sizes = camera.getParameters().getSupportedPictureSizes();
-    android.util.Size[] supportedSizes = new android.util.Size[sizes.size()];
-    for (int i = 0; i < sizes.size(); i++) {
-      Size s = sizes.get(i);
-      supportedSizes[i] = new android.util.Size(s.width, s.height);
-    }
-    return supportedSizes;
-  }
-
-  public void setPictureSize(android.util.Size size) {
-    Log.i(TAG, String.format("setting picture size (%d, %d)", size.getWidth(), size.getHeight()));
-    assertNotState(STATE_NOT_ACQUIRED, "A camera must be acquired before setting parameters");
-    Parameters params = camera.getParameters();
-    params.setPictureSize(size.getWidth(), size.getHeight());
-    camera.setParameters(params);
+  public android.util.Size getPictureSize() {
+    assertReady("A camera must be acquired before fetching parameters");
+    Size size = parametersCache.get().getPictureSize();
+    return new android.util.Size(size.width, size.height);
   }
 }
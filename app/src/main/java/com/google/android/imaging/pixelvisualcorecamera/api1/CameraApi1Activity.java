@@ -22,6 +22,7 @@ import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.Size;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
@@ -33,11 +34,15 @@ import android.widget.Toast;
 import com.google.android.imaging.pixelvisualcorecamera.R;
 import com.google.android.imaging.pixelvisualcorecamera.api1.Camera1Controller.CaptureCallback;
 import com.google.android.imaging.pixelvisualcorecamera.common.FileSystem;
+import com.google.android.imaging.pixelvisualcorecamera.common.ImageSaver;
+import com.google.android.imaging.pixelvisualcorecamera.common.ImageSaver.BackPressurePolicy;
 import com.google.android.imaging.pixelvisualcorecamera.common.Intents;
 import com.google.android.imaging.pixelvisualcorecamera.common.Preferences;
+import com.google.android.imaging.pixelvisualcorecamera.common.StorageAdmission;
 import com.google.android.imaging.pixelvisualcorecamera.common.Toasts;
 import com.google.android.imaging.pixelvisualcorecamera.common.Utils;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
 
 /**
  * Primary activity for an API 1 camera.
@@ -48,6 +53,9 @@ public final class CameraApi1Activity extends Activity {
   private static final String TAG = "PvcCamApi1";
   private static final String STATE_ZOOM = "zoom";
 
+  /** The number of shots that may wait to be written before captures are refused. */
+  private static final int SAVE_QUEUE_DEPTH = 4;
+
   private Camera1Controller cameraController;
   private CameraPreview mPreview;
   private Preferences preferences;
@@ -55,6 +63,16 @@ public final class CameraApi1Activity extends Activity {
   private int cameraId;
   private ScaleGestureDetector zoomScaleGestureDetector;
   private ZoomScaleGestureListener zoomScaleGestureListener;
+  private ImageSaver imageSaver;
+
+  /** Exposure and sharpness of the preview, logged with each shot. */
+  private final LumaStatsAnalyzer lumaStats = new LumaStatsAnalyzer();
+
+  private final ImageSaver.OnSaveCompleteListener onSaveCompleteListener = result -> {
+    if (!result.success) {
+      Log.w(TAG, "image was not saved");
+    }
+  };
 
   // ===============================================================================================
   // Activity Framework Callbacks
@@ -65,12 +83,22 @@ public final class CameraApi1Activity extends Activity {
     super.onCreate(savedInstanceState);
     Log.d(TAG, "[onCreate]");
     preferences = new Preferences(this);
+    FileSystem.setWritePolicy(preferences.getWritePolicy());
     setContentView(R.layout.camera1);
     Utils.setSystemUiOptionsForFullscreen(this);
+    imageSaver = new ImageSaver(SAVE_QUEUE_DEPTH, BackPressurePolicy.REFUSE_CAPTURE,
+        data -> FileSystem.saveImage(getApplicationContext(), data, /*isApi1*/ true));
+
     Button captureButton = findViewById(R.id.button_capture);
-    captureButton.setOnClickListener(v -> cameraController.takePicture(captureCallback));
+    captureButton.setOnClickListener(v -> {
+      if (acceptCapture()) {
+        logPreviewStats();
+        cameraController.takePicture(captureCallback);
+      }
+    });
 
     cameraController = new Camera1Controller(captureButton);
+    cameraController.setFrameAnalyzer(lumaStats);
 
     zoomScaleGestureListener = new ZoomScaleGestureListener(
         cameraController, findViewById(R.id.zoom_level_label), STATE_ZOOM);
@@ -95,19 +123,8 @@ public final class CameraApi1Activity extends Activity {
   public void onResume() {
     super.onResume();
     Log.d(TAG, "[onResume]");
-    try {
-      cameraController.acquireCamera(cameraId);
-      configureOutputSize();
-      cameraController.setDefaultParameters(getWindowManager().getDefaultDisplay().getRotation());
-      zoomScaleGestureListener.initZoomParameters();
-      cameraController.setZoom(zoomScaleGestureListener.getZoom());
-      configurePreview();
-    } catch (IOException e) {
-      String errorMessage = "Failed to acquire camera";
-      Toasts.showToast(this, errorMessage, Toast.LENGTH_LONG);
-      Log.w(TAG, errorMessage, e);
-      finish();
-    }
+    imageSaver.start();
+    acquireCamera();
   }
 
   /** Release the camera. */
@@ -118,6 +135,8 @@ public final class CameraApi1Activity extends Activity {
     if (cameraController.isAcquired()) {
       cameraController.releaseCamera();
     }
+    // The shots already taken are written on the saver thread, after onPause has returned.
+    imageSaver.stop();
   }
 
   @Override
@@ -135,6 +154,69 @@ public final class CameraApi1Activity extends Activity {
   // UI Management
   // ===============================================================================================
 
+  /** Returns true if the saver and storage have room for another shot. */
+  private boolean acceptCapture() {
+    if (!imageSaver.isAcceptingCaptures(/*imageCount*/ 1)) {
+      Log.i(TAG, "capture refused, save queue full: " + imageSaver.getPendingCount());
+      Toasts.showToast(this, "Still saving, please wait", Toast.LENGTH_SHORT);
+      return false;
+    }
+    StorageAdmission admission = FileSystem.getStorageAdmission();
+    Size pictureSize = cameraController.getPictureSize();
+    StorageAdmission.Decision decision = admission.admit(/*frameCount*/ 1,
+        imageSaver.getPendingCount(), (long) pictureSize.getWidth() * pictureSize.getHeight());
+    switch (decision.outcome) {
+      case ACCEPT:
+        return true;
+      case REFUSE:
+        Log.w(TAG, "capture refused: " + decision + ", " + admission);
+        Toasts.showToast(this, "Storage is full", Toast.LENGTH_LONG);
+        return false;
+      default:
+        Log.i(TAG, "capture deferred: " + decision + ", " + admission);
+        Toasts.showToast(this, "Still saving, please wait", Toast.LENGTH_SHORT);
+        return false;
+    }
+  }
+
+  /** Logs the preview statistics at the time of a shot. */
+  private void logPreviewStats() {
+    PreviewFrameProcessor frameProcessor = cameraController.getFrameProcessor();
+    if (frameProcessor == null) {
+      return;
+    }
+    Log.d(TAG, String.format(Locale.US,
+        "shot at mean luma %.1f, sharpness %.2f; %d of %d preview frames dropped",
+        lumaStats.getMeanLuma(), lumaStats.getSharpness(),
+        frameProcessor.getFramesDropped(), frameProcessor.getFramesReceived()));
+  }
+
+  /** Opens and configures the camera in the background, then starts the preview. */
+  private void acquireCamera() {
+    cameraController.acquireCameraAsync(cameraId,
+        getWindowManager().getDefaultDisplay().getRotation(),
+        zoomScaleGestureListener.getZoom(),
+        acquireCallback);
+  }
+
+  private final Camera1Controller.AcquireCallback acquireCallback =
+      new Camera1Controller.AcquireCallback() {
+
+    @Override
+    public void onCameraReady() {
+      zoomScaleGestureListener.initZoomParameters();
+      configurePreview();
+    }
+
+    @Override
+    public void onCameraFailed(Exception e) {
+      String errorMessage = "Failed to acquire camera";
+      Toasts.showToast(CameraApi1Activity.this, errorMessage, Toast.LENGTH_LONG);
+      Log.w(TAG, errorMessage, e);
+      finish();
+    }
+  };
+
   private void configurePreview() {
     if (mPreview == null) {
       FrameLayout preview = findViewById(R.id.camera_preview);
@@ -149,10 +231,15 @@ public final class CameraApi1Activity extends Activity {
   // Capture Callback
   // ===============================================================================================
 
+  /**
+   * Hands the jpeg to the saver thread and restarts the preview right away, so the write
+   * overlaps with the next preview rather than blocking the UI thread.
+   */
   private final CaptureCallback captureCallback = new CaptureCallback() {
     @Override
     public void onPictureTaken(byte[] bytes, Camera camera) {
-      FileSystem.saveImage(CameraApi1Activity.this, bytes, /*isApi1=*/ true);
+      // The camera allocates a new array for every picture, it is written without a copy.
+      imageSaver.submit(ByteBuffer.wrap(bytes), onSaveCompleteListener);
       // Post this on the UI thread to allow the controller state machine to complete it's
       // transitions.
       mPreview.post(() -> mPreview.reset());
@@ -234,23 +321,7 @@ public final class CameraApi1Activity extends Activity {
       zoomScaleGestureListener.reset();
 
       Log.i(TAG, "restarting with new camera");
-      try {
-        cameraController.acquireCamera(cameraId);
-        configureOutputSize();
-        cameraController.setDefaultParameters(getWindowManager().getDefaultDisplay().getRotation());
-        zoomScaleGestureListener.initZoomParameters();
-        cameraController.setZoom(zoomScaleGestureListener.getZoom());
-        configurePreview();
-      }  catch (IOException e) {
-        Log.w(TAG, "failed to acquire camera", e);
-      }
+      acquireCamera();
     }
   };
-
-  /** Call this after a camera has been acquired. */
-  private void configureOutputSize() {
-    Log.d(TAG, "configureOutputSize");
-    android.util.Size[] supportedSizes = cameraController.getSupportedPictureSizes();
-    cameraController.setPictureSize(supportedSizes[0]);
-  }
 }
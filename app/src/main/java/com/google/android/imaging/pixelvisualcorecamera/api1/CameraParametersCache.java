@@ -0,0 +1,114 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api1;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.util.Log;
+import android.view.Choreographer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A write-back cache of the camera's Parameters. Camera#getParameters and #setParameters each
+ * marshal the full parameter string through the camera service, so the parameters are read
+ * once per acquire and changes are written in batches: either right away with #flush, or with
+ * #scheduleFlush, at most once per display frame. Main thread only.
+ */
+@SuppressWarnings("deprecation")
+final class CameraParametersCache {
+
+  private static final String TAG = "PvcCamParams";
+
+  // Parameter keys, as used by Camera.Parameters. Only used to report what is flushed.
+  static final String KEY_PREVIEW_SIZE = "preview-size";
+  static final String KEY_PICTURE_SIZE = "picture-size";
+  static final String KEY_ROTATION = "rotation";
+  static final String KEY_FOCUS_MODE = "focus-mode";
+  static final String KEY_FLASH_MODE = "flash-mode";
+  static final String KEY_EFFECT = "effect";
+  static final String KEY_WHITE_BALANCE = "whitebalance";
+  static final String KEY_ZOOM = "zoom";
+
+  private final Camera camera;
+  private Parameters parameters;
+  private final Set<String> dirtyKeys = new LinkedHashSet<>();
+  private boolean flushScheduled;
+
+  private final Choreographer.FrameCallback flushCallback = frameTimeNanos -> {
+    flushScheduled = false;
+    flush();
+  };
+
+  CameraParametersCache(Camera camera) {
+    this.camera = camera;
+    this.parameters = camera.getParameters();
+  }
+
+  /**
+   * Returns the cached parameters. Callers that modify them must call #markDirty with the keys
+   * they changed, then flush.
+   */
+  Parameters get() {
+    return parameters;
+  }
+
+  void markDirty(String key) {
+    dirtyKeys.add(key);
+  }
+
+  boolean isDirty() {
+    return !dirtyKeys.isEmpty();
+  }
+
+  /** Flushes the changes with the next display frame, coalescing changes made until then. */
+  void scheduleFlush() {
+    if (!flushScheduled && isDirty()) {
+      flushScheduled = true;
+      Choreographer.getInstance().postFrameCallback(flushCallback);
+    }
+  }
+
+  /** Writes the changed parameters to the camera, if any. */
+  void flush() {
+    if (flushScheduled) {
+      Choreographer.getInstance().removeFrameCallback(flushCallback);
+      flushScheduled = false;
+    }
+    if (dirtyKeys.isEmpty()) {
+      return;
+    }
+    Log.d(TAG, "flushing " + dirtyKeys);
+    dirtyKeys.clear();
+    try {
+      camera.setParameters(parameters);
+    } catch (RuntimeException e) {
+      // The camera rejected the whole set; resync with the parameters it actually holds.
+      Log.w(TAG, "failed to set parameters, reloading", e);
+      parameters = camera.getParameters();
+    }
+  }
+
+  /** Drops pending changes. Call before the camera is released. */
+  void discard() {
+    if (flushScheduled) {
+      Choreographer.getInstance().removeFrameCallback(flushCallback);
+      flushScheduled = false;
+    }
+    dirtyKeys.clear();
+  }
+}
@@ -20,7 +20,6 @@ import android.content.Context;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
-import java.io.IOException;
 
 /**
  * API1 Preview View.
@@ -52,15 +51,29 @@ public final class CameraPreview extends SurfaceView implements SurfaceHolder.Ca
         Log.w(TAG, "tried to stopPreview", e);
       }
     }
+    startPreviewIfReady("reset()");
+  }
 
-    if (surfaceValid) {
-      try {
-        Log.i(TAG, "reset() starting preview");
-        controller.setPreviewDisplay(mHolder);
-        controller.startPreview();
-      } catch (Exception e) {
-        Log.w(TAG, "Error starting camera preview: ", e);
-      }
+  /**
+   * Starts the preview once both the surface and the camera are ready, whichever comes last.
+   * A preview already running is left alone: the preview size is fixed, so a surface change
+   * does not require a restart.
+   */
+  private void startPreviewIfReady(String caller) {
+    if (!surfaceValid || !controller.isCameraReady()) {
+      Log.d(TAG, caller + ": waiting for " + (surfaceValid ? "camera" : "surface"));
+      return;
+    }
+    if (controller.isPreviewActive()) {
+      Log.d(TAG, caller + ": preview already running");
+      return;
+    }
+    try {
+      Log.i(TAG, caller + " starting preview");
+      controller.setPreviewDisplay(mHolder);
+      controller.startPreview();
+    } catch (Exception e) {
+      Log.w(TAG, "Error starting camera preview: ", e);
     }
   }
 
@@ -71,11 +84,6 @@ public final class CameraPreview extends SurfaceView implements SurfaceHolder.Ca
   public void surfaceCreated(SurfaceHolder holder) {
     Log.d(TAG, "surfaceCreated");
     surfaceValid = true;
-    try {
-      controller.setPreviewDisplay(holder);
-    } catch (IOException e) {
-      Log.d(TAG, "Error setting camera preview", e);
-    }
   }
 
   @Override
@@ -85,23 +93,7 @@ public final class CameraPreview extends SurfaceView implements SurfaceHolder.Ca
       Log.w(TAG, "surfaceChanged, but surface doesn't exist!");
       return;
     }
-
-    // Stop the preview if active.
-    if (controller.isPreviewActive()) {
-      try {
-        controller.stopPreview();
-      } catch (Exception e) {
-        Log.w(TAG, "caught exception stopping preview", e);
-      }
-    }
-
-    // Start preview with new settings.
-    try {
-      Log.i(TAG, "surfaceChanged() starting preview");
-      controller.startPreview();
-    } catch (Exception e){
-      Log.i(TAG, "Error starting camera preview: ", e);
-    }
+    startPreviewIfReady("surfaceChanged()");
   }
 
   @Override
@@ -0,0 +1,66 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api1;
+
+import com.google.android.imaging.pixelvisualcorecamera.api1.Camera1Controller.FrameAnalyzer;
+
+/**
+ * Measures exposure and sharpness of preview frames from the luma plane: the mean luma, and the
+ * mean absolute horizontal luma gradient as a focus measure. Samples a sparse grid, so a frame
+ * costs well under a millisecond. The values of the latest frame may be read from any thread.
+ */
+final class LumaStatsAnalyzer implements FrameAnalyzer {
+
+  /** Distance between sampled rows and columns, in pixels. */
+  private static final int SAMPLE_STEP = 8;
+
+  private volatile float meanLuma;
+  private volatile float sharpness;
+
+  @Override
+  public void analyze(byte[] nv21, int width, int height) {
+    // The NV21 luma plane comes first, one byte per pixel, rows width bytes apart.
+    long lumaSum = 0;
+    long gradientSum = 0;
+    int samples = 0;
+    for (int y = SAMPLE_STEP / 2; y < height; y += SAMPLE_STEP) {
+      int row = y * width;
+      for (int x = SAMPLE_STEP / 2; x < width - 1; x += SAMPLE_STEP) {
+        int luma = nv21[row + x] & 0xff;
+        int next = nv21[row + x + 1] & 0xff;
+        lumaSum += luma;
+        gradientSum += Math.abs(next - luma);
+        samples++;
+      }
+    }
+    if (samples == 0) {
+      return;
+    }
+    meanLuma = (float) lumaSum / samples;
+    sharpness = (float) gradientSum / samples;
+  }
+
+  /** Returns the mean luma of the latest frame, from 0 to 255. */
+  float getMeanLuma() {
+    return meanLuma;
+  }
+
+  /** Returns the mean absolute horizontal luma gradient of the latest frame. */
+  float getSharpness() {
+    return sharpness;
+  }
+}
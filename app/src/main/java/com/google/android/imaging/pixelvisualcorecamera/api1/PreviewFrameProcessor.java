@@ -0,0 +1,189 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api1;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import com.google.android.imaging.pixelvisualcorecamera.api1.Camera1Controller.FrameAnalyzer;
+import java.util.Locale;
+
+/**
+ * Feeds preview frames to a {@link FrameAnalyzer} on a worker thread. Frames are delivered into
+ * a fixed pool of NV21 buffers registered with Camera#addCallbackBuffer, so the camera does not
+ * allocate an array per frame. At most one frame is analyzed at a time: a frame that arrives
+ * while the worker is busy is dropped, and its buffer is handed straight back to the camera.
+ *
+ * <p>Must be used on the thread that opened the camera, which receives the preview callbacks.
+ * The counters may be read from any thread.
+ */
+@SuppressWarnings("deprecation")
+final class PreviewFrameProcessor {
+
+  private static final String TAG = "PvcCamFrames";
+
+  /** One buffer in analysis, the rest cycling through the camera. */
+  static final int DEFAULT_BUFFER_COUNT = 3;
+
+  private final Camera camera;
+  private final FrameAnalyzer analyzer;
+  private final int width;
+  private final int height;
+  private final byte[][] buffers;
+  private final Handler cameraHandler;
+  private final HandlerThread workerThread;
+  private final Handler workerHandler;
+
+  /** True while the preview callback is installed. */
+  private boolean attached;
+
+  /** The buffer owned by the worker, or null if the worker is idle. */
+  private byte[] analyzingBuffer;
+
+  // Counters, guarded by this.
+  private long framesReceived;
+  private long framesAnalyzed;
+  private long framesDropped;
+  private long totalAnalysisNs;
+  private long maxAnalysisNs;
+
+  private final Camera.PreviewCallback previewCallback = (data, camera1) -> onPreviewFrame(data);
+
+  /** The buffers are sized for the given preview size, which must not change while attached. */
+  PreviewFrameProcessor(
+      Camera camera, int width, int height, int bufferCount, FrameAnalyzer analyzer) {
+    if (bufferCount < 2) {
+      throw new IllegalArgumentException("At least two buffers are required: " + bufferCount);
+    }
+    this.camera = camera;
+    this.analyzer = analyzer;
+    this.width = width;
+    this.height = height;
+    int bufferSize = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+    buffers = new byte[bufferCount][];
+    for (int i = 0; i < bufferCount; i++) {
+      buffers[i] = new byte[bufferSize];
+    }
+    cameraHandler = new Handler(Looper.myLooper());
+    workerThread = new HandlerThread("FrameAnalysis", Process.THREAD_PRIORITY_BACKGROUND);
+    workerThread.start();
+    workerHandler = new Handler(workerThread.getLooper());
+    Log.d(TAG, String.format(Locale.US, "%d buffers of %d bytes for %dx%d",
+        bufferCount, bufferSize, width, height));
+  }
+
+  boolean matchesSize(int width, int height) {
+    return this.width == width && this.height == height;
+  }
+
+  /** Installs the preview callback and hands the idle buffers to the camera. */
+  void attach() {
+    if (attached) {
+      return;
+    }
+    camera.setPreviewCallbackWithBuffer(previewCallback);
+    for (byte[] buffer : buffers) {
+      if (buffer != analyzingBuffer) {
+        camera.addCallbackBuffer(buffer);
+      }
+    }
+    attached = true;
+  }
+
+  /**
+   * Removes the preview callback. The camera drops its buffer queue; buffers come back to the
+   * pool and are handed out again by the next #attach.
+   */
+  void detach() {
+    if (!attached) {
+      return;
+    }
+    camera.setPreviewCallbackWithBuffer(null);
+    attached = false;
+  }
+
+  /** Detaches and stops the worker once a frame in analysis is finished. */
+  void release() {
+    detach();
+    workerThread.quitSafely();
+    Log.d(TAG, "released, " + this);
+  }
+
+  private void onPreviewFrame(byte[] data) {
+    if (!attached || data == null) {
+      return;
+    }
+    if (analyzingBuffer != null) {
+      synchronized (this) {
+        framesReceived++;
+        framesDropped++;
+      }
+      camera.addCallbackBuffer(data);
+      return;
+    }
+    synchronized (this) {
+      framesReceived++;
+    }
+    analyzingBuffer = data;
+    workerHandler.post(() -> analyze(data));
+  }
+
+  /** Runs on the worker thread. */
+  private void analyze(byte[] data) {
+    long startNs = System.nanoTime();
+    try {
+      analyzer.analyze(data, width, height);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "frame analyzer failed", e);
+    }
+    long elapsedNs = System.nanoTime() - startNs;
+    synchronized (this) {
+      framesAnalyzed++;
+      totalAnalysisNs += elapsedNs;
+      maxAnalysisNs = Math.max(maxAnalysisNs, elapsedNs);
+    }
+    cameraHandler.post(() -> onAnalysisDone(data));
+  }
+
+  private void onAnalysisDone(byte[] data) {
+    analyzingBuffer = null;
+    if (attached) {
+      camera.addCallbackBuffer(data);
+    }
+  }
+
+  synchronized long getFramesReceived() {
+    return framesReceived;
+  }
+
+  /** Returns the frames dropped because the worker was still busy with an earlier one. */
+  synchronized long getFramesDropped() {
+    return framesDropped;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.US,
+        "frames received: %d, analyzed: %d, dropped: %d, analysis mean: %.2fms, max: %.2fms",
+        framesReceived, framesAnalyzed, framesDropped,
+        (framesAnalyzed > 0) ? totalAnalysisNs / framesAnalyzed / 1e6 : 0, maxAnalysisNs / 1e6);
+  }
+}
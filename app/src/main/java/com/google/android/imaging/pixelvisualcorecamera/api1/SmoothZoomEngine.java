@@ -0,0 +1,135 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api1;
+
+import android.hardware.Camera;
+import android.hardware.Camera.OnZoomChangeListener;
+import android.util.Log;
+
+/**
+ * Drives zoom gestures with Camera#startSmoothZoom. The camera steps through the zoom levels
+ * itself, one per frame, rather than being sent a parameter write per gesture event.
+ *
+ * <p>A smooth zoom may not be restarted or changed until it stops. When the target moves while
+ * a zoom is running, the zoom is kept if it still heads towards the new target, and the
+ * remainder is started once it stops; otherwise it is stopped early and restarted towards the
+ * new target. Main thread only.
+ */
+@SuppressWarnings("deprecation")
+final class SmoothZoomEngine {
+
+  private static final String TAG = "PvcCamSmoothZoom";
+  private static final int NO_TARGET = -1;
+
+  /** Notified of each zoom level the camera reaches. */
+  interface Listener {
+    void onZoomChanged(int zoomLevel);
+  }
+
+  private final Camera camera;
+  private final Listener listener;
+  private int currentZoom;
+  private boolean zooming;
+  private boolean stopRequested;
+  private int zoomTarget = NO_TARGET;
+  private int pendingTarget = NO_TARGET;
+
+  private final OnZoomChangeListener zoomChangeListener =
+      (zoomValue, stopped, camera1) -> onZoomChange(zoomValue, stopped);
+
+  /** @param currentZoom the zoom level of the camera */
+  SmoothZoomEngine(Camera camera, int currentZoom, Listener listener) {
+    this.camera = camera;
+    this.currentZoom = currentZoom;
+    this.listener = listener;
+    camera.setZoomChangeListener(zoomChangeListener);
+  }
+
+  /** Returns true while the camera is stepping the zoom. */
+  boolean isZooming() {
+    return zooming;
+  }
+
+  /** Records a zoom level written directly with the parameters, while no zoom runs. */
+  void setCurrentZoom(int level) {
+    currentZoom = level;
+  }
+
+  /** Zooms to the level, retargeting a zoom in progress. */
+  void zoomTo(int level) {
+    if (!zooming) {
+      if (level != currentZoom) {
+        start(level);
+      }
+      return;
+    }
+    if (level == zoomTarget) {
+      pendingTarget = NO_TARGET;
+      return;
+    }
+    pendingTarget = level;
+    // Stop early if the running zoom would move away from or overshoot the new target.
+    boolean sameDirection =
+        Integer.signum(zoomTarget - currentZoom) == Integer.signum(level - currentZoom);
+    boolean beyondTarget = Math.abs(level - currentZoom) >= Math.abs(zoomTarget - currentZoom);
+    if (!(sameDirection && beyondTarget) && !stopRequested) {
+      stopRequested = true;
+      camera.stopSmoothZoom();
+    }
+  }
+
+  /** Stops a zoom in progress and detaches from the camera. */
+  void release() {
+    if (zooming) {
+      try {
+        camera.stopSmoothZoom();
+      } catch (RuntimeException e) {
+        Log.w(TAG, "failed to stop smooth zoom", e);
+      }
+    }
+    camera.setZoomChangeListener(null);
+    zooming = false;
+    pendingTarget = NO_TARGET;
+  }
+
+  private void onZoomChange(int zoomValue, boolean stopped) {
+    currentZoom = zoomValue;
+    listener.onZoomChanged(zoomValue);
+    if (!stopped) {
+      return;
+    }
+    zooming = false;
+    stopRequested = false;
+    zoomTarget = NO_TARGET;
+    int target = pendingTarget;
+    pendingTarget = NO_TARGET;
+    if (target != NO_TARGET && target != currentZoom) {
+      start(target);
+    }
+  }
+
+  private void start(int level) {
+    try {
+      camera.startSmoothZoom(level);
+      zooming = true;
+      zoomTarget = level;
+    } catch (RuntimeException e) {
+      // E.g., the preview is not running.
+      Log.w(TAG, "failed to start smooth zoom to " + level, e);
+    }
+  }
+}
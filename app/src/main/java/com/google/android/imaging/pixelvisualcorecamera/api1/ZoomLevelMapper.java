@@ -0,0 +1,50 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api1;
+
+import java.util.Locale;
+
+/** Maps scale gestures to API 1 zoom levels. Has no framework dependencies. */
+final class ZoomLevelMapper {
+
+  // Adjusts the sensitivity of the gesture.
+  private static final int DP_PER_ZOOM_INTERVAL = 8;
+
+  /**
+   * Returns the zoom level for the current span of a scale gesture, clamped to [0, maxZoom].
+   *
+   * @param zoomLevel the zoom level when the gesture began
+   * @param startingSpan the span when the gesture began
+   * @param currentSpan the current span
+   */
+  static int getZoomLevel(int zoomLevel, float startingSpan, float currentSpan, int maxZoom) {
+    double distanceChange = currentSpan - startingSpan;
+    double zoomLevelChange = distanceChange / DP_PER_ZOOM_INTERVAL;
+
+    // Clamp the zoom level to valid intervals.
+    return Math.min(
+        Math.max((int) Math.round(zoomLevel + zoomLevelChange), 0),
+        maxZoom);
+  }
+
+  /** Formats a zoom ratio from Camera.Parameters#getZoomRatios, e.g., 150 -> "x1.50". */
+  static String formatZoomRatio(int zoomRatio) {
+    return String.format(Locale.US, "x%.2f", (double) zoomRatio / 100);
+  }
+
+  private ZoomLevelMapper() {}
+}
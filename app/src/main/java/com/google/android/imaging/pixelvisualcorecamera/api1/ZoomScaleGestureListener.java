@@ -23,13 +23,10 @@ import android.view.ScaleGestureDetector;
 import android.view.ScaleGestureDetector.SimpleOnScaleGestureListener;
 import android.view.View;
 import android.widget.TextView;
-import java.util.Locale;
 
 /** API 1 zoom controller. Changes the zoom in response to scale events. */
 public final class ZoomScaleGestureListener extends SimpleOnScaleGestureListener {
 
-  // Adjusts the sensitivity of the gesture.
-  private static final int DP_PER_ZOOM_INTERVAL = 8;
   private static final int DEFAULT_ZOOM = 0;
 
   private final Camera1Controller controller;
@@ -82,11 +79,15 @@ public final class ZoomScaleGestureListener extends SimpleOnScaleGestureListener
   }
 
   private String formatZoomLabel(int zoomLevel) {
-    return String.format(Locale.US, "x%.2f", (double) zoomRatios[zoomLevel] / 100);
+    return ZoomLevelMapper.formatZoomRatio(zoomRatios[zoomLevel]);
   }
 
   @Override
   public boolean onScaleBegin(ScaleGestureDetector detector) {
+    if (zoomRatios == null || !controller.isCameraReady()) {
+      // The camera is still being acquired.
+      return false;
+    }
     label.setText(formatZoomLabel(zoomLevel));
     label.setVisibility(View.VISIBLE);
     startingSpan = detector.getCurrentSpan();
@@ -95,15 +96,9 @@ public final class ZoomScaleGestureListener extends SimpleOnScaleGestureListener
 
   @Override
   public boolean onScale(ScaleGestureDetector detector) {
-    float currentSpan = detector.getCurrentSpan();
-    double distanceChange = currentSpan - startingSpan;
-    double zoomLevelChange = distanceChange / DP_PER_ZOOM_INTERVAL;
-
-    // Clamp the zoom level to valid intervals.
-    intermediateZoomLevel = Math.min(
-        Math.max((int) Math.round(zoomLevel + zoomLevelChange), 0),
-        maxZoom);
-    controller.setZoom(intermediateZoomLevel);
+    intermediateZoomLevel = ZoomLevelMapper.getZoomLevel(
+        zoomLevel, startingSpan, detector.getCurrentSpan(), maxZoom);
+    controller.zoomTo(intermediateZoomLevel);
     label.setText(formatZoomLabel(intermediateZoomLevel));
 
     return true;
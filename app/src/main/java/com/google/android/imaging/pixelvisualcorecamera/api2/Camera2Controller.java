@@ -16,23 +16,18 @@ limitations under the License.
 
 package com.google.android.imaging.pixelvisualcorecamera.api2;
 
-import static android.hardware.camera2.CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM;
-import static android.hardware.camera2.CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE;
-
 import android.content.Context;
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
@@ -46,9 +41,12 @@ import android.widget.Button;
 import com.google.android.imaging.pixelvisualcorecamera.common.Orientation;
 import com.google.android.imaging.pixelvisualcorecamera.common.Utils;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.Semaphore;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *  Manages the state of an API 2 camera.
@@ -65,30 +63,110 @@ public final class Camera2Controller {
     void onImageAvailable(Image image);
   }
 
+  /** Callback for when a captured image is available, handing ownership to the client. */
+  public interface OnImageOwnedListener {
+
+    /**
+     * Provides the most recently acquired Image. The client owns the image and must call
+     * OwnedImage#release once done with it, on any thread. Images not released within the
+     * deadline are logged by the ImageLeakDetector. Called on a background thread.
+     */
+    void onImageOwned(OwnedImage image);
+  }
+
+  /** The maximum number of frames in a single burst, see #takeBurst. */
+  public static final int MAX_BURST_FRAMES = 8;
+
+  /** The default maxImages of the jpeg ImageReader for single and double shots. */
+  public static final int DEFAULT_IMAGE_READER_DEPTH = 2;
+
+  /** The time an OwnedImage may be held before it is logged as leaked. */
+  private static final long IMAGE_RELEASE_DEADLINE_MS = 3000;
+
   private static final String TAG = "PvcCamCon2";
   private static final double ZOOM_SCALE_1_00 = 1.0;
 
   private final Context context;
   private final int displayRotationCode;
-  private final View captureButton;
-  private final View doubleShotButton;
+  private final CaptureButtonState captureButtonState;
   private final AutoFitTextureView textureView;
   private OnImageAvailableListener clientOnImageAvailableListener;
+  private volatile OnImageOwnedListener clientOnImageOwnedListener;
+
+  /** Guards lastOperation and pendingOpen. */
+  private final Object lifecycleLock = new Object();
 
-  /** Acquire this semaphore before attempting to open/close the camera. */
-  private final Semaphore openCloseLock = new Semaphore(1);
+  /** The most recently requested open or close. Operations start once the previous finished. */
+  private CameraOperation lastOperation;
+
+  /** An open that has been requested but not started yet. Cancelled by a following close. */
+  private CameraOperation pendingOpen;
+
+  /** The open whose device or session callbacks are outstanding. Camera thread only. */
+  private CameraOperation currentOpen;
+
+  /** The close waiting for the device to report onClosed. Camera thread only. */
+  private CameraOperation currentClose;
+
+  /** The configured open waiting for its first preview result. Camera thread only. */
+  private CameraOperation firstFrameOperation;
+
+  /** Completed with the surface size once the TextureView is available. Main thread only. */
+  private CompletableFuture<Size> surfaceReady;
   private String cameraId;
   private CameraDevice cameraDevice;
   private Size previewSize;
   private CameraCaptureSession captureSession;
   private ImageReader imageReader;
-  private boolean stillCapturePending;
+
+  /** The maxImages of the jpeg ImageReader, indexed by the shot type of CaptureRequestQueue. */
+  private final int[] imageReaderDepths =
+      {DEFAULT_IMAGE_READER_DEPTH, DEFAULT_IMAGE_READER_DEPTH, MAX_BURST_FRAMES};
+
+  /** True once a burst sized the reader for bursts, until the camera is opened again. */
+  private boolean burstSession;
+
+  /** True while the session is replaced for a burst. Camera thread only. */
+  private boolean sessionReconfiguring;
+
+  /** Captures requested while the session is replaced, started once it is configured. */
+  private final List<CaptureRequestQueue.PendingCapture> capturesAwaitingSession =
+      new ArrayList<>();
+  /**
+   * Accounts for the buffers of the current imageReader. Replaced with the reader; images keep
+   * the tracker of the reader they came from.
+   */
+  private volatile ImageBufferTracker imageBuffers =
+      new ImageBufferTracker(DEFAULT_IMAGE_READER_DEPTH);
+
+  /** Guards closing image readers against images being acquired or released. */
+  private final Object imageReaderLock = new Object();
+
+  /** Closed readers whose images are still owned by the client. Closed on the last release. */
+  private final List<ImageReader> imageReadersPendingClose = new ArrayList<>();
+
+  /** Images delivered to the reader that could not be acquired yet. Camera thread only. */
+  private int imagesWaitingForAcquire;
+
+  private final ImageLeakDetector imageLeakDetector =
+      new ImageLeakDetector(IMAGE_RELEASE_DEADLINE_MS, TimeUnit.MILLISECONDS);
   private Handler backgroundHandler;
-  private boolean doubleShotPending;
-  private boolean nonHdrPlusShotPending;
   private Size outputSize;
   private int outputOrientation;
 
+  /** Collects the stage timestamps of each shot. */
+  private final ShotLatencyRecorder shotLatencyRecorder = new ShotLatencyRecorder();
+
+  /** Pairs still results with owned images. Holds up to two bursts of unmatched frames. */
+  private final CaptureMetadataMatcher captureMetadataMatcher =
+      new CaptureMetadataMatcher(2 * MAX_BURST_FRAMES);
+
+  /** Captures requested while another capture is in flight. */
+  private final CaptureRequestQueue captureQueue;
+
+  /** Frames of requests posted to the camera thread but not queued yet. */
+  private final AtomicInteger postedFrameCount = new AtomicInteger();
+
   /**
    *  This builder acts as a cache for intermediate preview requests during the capture sequence.
    *  Care should be taken that operations on this builder are overwritten by later steps.
@@ -105,25 +183,41 @@ public final class Camera2Controller {
   /** A scale factor from 1.0 to maxDigitalZoom. Applied to all preview and capture requests. */
   private double zoomSetting = ZOOM_SCALE_1_00;
 
-  /** Camera characteristic used to position the zoom cropping region. */
-  private Rect activeArraySize;
+  /**
+   * The most recent zoom requested by #setZoom. Applied to the repeating preview request on the
+   * camera thread, at most once per frame, when zoomUpdatePending is set.
+   */
+  private volatile double pendingZoomSetting = ZOOM_SCALE_1_00;
+  private volatile boolean zoomUpdatePending;
+
+  /** Crop regions of the current camera, indexed by zoom. */
+  private CropRegionTable cropRegionTable;
 
   /** Camera characteristic for the maximum digital zoom. */
-  private double maxDigitalZoom = ZOOM_SCALE_1_00;
+  private volatile double maxDigitalZoom = ZOOM_SCALE_1_00;
 
+  /**
+   * @param captureQueueDepth the number of captures that may wait for the one in flight
+   * @param coalesceCaptures if true, a capture identical to the last queued one is dropped
+   *     rather than queued again, see CaptureRequestQueue
+   */
   public Camera2Controller(
       Context context,
       int displayRotationCode,
       Button captureButton,
       View doubleShotButton,
       AutoFitTextureView textureView,
-      OnImageAvailableListener clientOnImageAvailableListener) {
+      OnImageAvailableListener clientOnImageAvailableListener,
+      int captureQueueDepth,
+      boolean coalesceCaptures) {
     this.context = context;
     this.displayRotationCode = displayRotationCode;
-    this.captureButton = captureButton;
-    this.doubleShotButton = doubleShotButton;
+    this.captureButtonState = new CaptureButtonState(captureButton, doubleShotButton);
     this.textureView = textureView;
     this.clientOnImageAvailableListener = clientOnImageAvailableListener;
+    captureQueue = new CaptureRequestQueue(captureQueueDepth, coalesceCaptures);
+    captureSequence = new StillCaptureSequence(
+        sequenceSession, captureQueue, shotLatencyRecorder, NanoClock.SYSTEM);
   }
 
   // ===============================================================================================
@@ -133,72 +227,206 @@ public final class Camera2Controller {
   /** Set the handler on which to run background operations. */
   public void setBackgroundHandler(Handler backgroundHandler) {
     this.backgroundHandler = backgroundHandler;
+    imageLeakDetector.setHandler(backgroundHandler);
   }
 
-  // When the screen is turned off and turned back on, the SurfaceTexture is already
-  // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
-  // a camera and start preview from here (otherwise, we wait until the surface is ready in
-  // the SurfaceTextureListener).
-  public void acquireCamera(String cameraId, Size outputSize, double zoom) throws IOException {
-    Log.d(TAG, String.format("acquireCamera(cameraId=%s, zoom=x%.2f)", cameraId, zoom));
-    if (backgroundHandler == null) {
-      throw new IllegalStateException("A background handler must be set before opening the camera");
+  /**
+   * Sets a listener that takes ownership of each captured image, e.g., to save it from the
+   * reader's buffer without a copy. Replaces the OnImageAvailableListener while set.
+   */
+  public void setOnImageOwnedListener(OnImageOwnedListener listener) {
+    clientOnImageOwnedListener = listener;
+  }
+
+  /**
+   * Opens the camera and starts the preview, without blocking the caller. The open starts on
+   * the camera thread once earlier operations have finished and the TextureView is available.
+   * When the screen is turned off and turned back on, the SurfaceTexture is already available
+   * and "onSurfaceTextureAvailable" will not be called; otherwise the open waits for it.
+   * Call on the main thread.
+   */
+  public CameraOperation openCameraAsync(String cameraId, Size outputSize, double zoom) {
+    Log.d(TAG, String.format("openCameraAsync(cameraId=%s, zoom=x%.2f)", cameraId, zoom));
+    Handler handler = getLifecycleHandler();
+    CameraOperation operation = CameraOperation.newOpen(cameraId);
+    CompletableFuture<Size> surface = awaitSurface();
+    synchronized (lifecycleLock) {
+      CompletableFuture<?> previous = getLastOperationFinished();
+      lastOperation = operation;
+      pendingOpen = operation;
+      previous
+          .handle((result, t) -> null)
+          .thenCombine(surface, (ignored, surfaceSize) -> surfaceSize)
+          .thenAccept(surfaceSize -> handler.post(
+              () -> startOpen(operation, surfaceSize, outputSize, zoom)));
     }
-    zoomSetting = zoom;
+    return operation;
+  }
 
-    this.cameraId = cameraId;
-    this.outputSize = outputSize;
-    if (textureView.isAvailable()) {
-      openCamera(textureView.getWidth(), textureView.getHeight(), outputSize);
-    } else {
-      Log.d(TAG, "textureView not available, starting listener");
-      textureView.setSurfaceTextureListener(surfaceTextureListener);
+  /**
+   * Switches to another camera, without blocking the caller. Unlike a close followed by an
+   * open, the new camera is opened right after the old one is closed, without waiting for
+   * onClosed, and the jpeg ImageReader is kept if the output size does not change. The preview
+   * keeps the same SurfaceTexture, which shows the last frame until the new camera streams.
+   * The latency is reported by the operation's phases, see CameraOperation#firstFrame.
+   * Call on the main thread.
+   */
+  public CameraOperation switchCameraAsync(String cameraId, Size outputSize, double zoom) {
+    Log.d(TAG, String.format("switchCameraAsync(cameraId=%s, zoom=x%.2f)", cameraId, zoom));
+    Handler handler = getLifecycleHandler();
+    CameraOperation operation = CameraOperation.newSwitch(cameraId);
+    captureButtonState.setEnabled(false);
+    CompletableFuture<Size> surface = awaitSurface();
+    synchronized (lifecycleLock) {
+      CompletableFuture<?> previous = getLastOperationFinished();
+      lastOperation = operation;
+      pendingOpen = operation;
+      previous
+          .handle((result, t) -> null)
+          .thenCombine(surface, (ignored, surfaceSize) -> surfaceSize)
+          .thenAccept(surfaceSize -> handler.post(
+              () -> startSwitch(operation, surfaceSize, outputSize, zoom)));
     }
+    return operation;
   }
 
-  public void closeCamera() {
-    Log.d(TAG, "closeCamera");
-    try {
-      openCloseLock.acquire();
-      if (null != captureSession) {
-        captureSession.close();
-        captureSession = null;
-      }
-      if (cameraDevice != null) {
-        cameraDevice.close();
-        cameraDevice = null;
+  /**
+   * Loads the configuration of a camera ahead of a switch: its characteristics, output sizes
+   * and crop regions, see CameraProperties. Capture requests can only be built once a device
+   * is open. Runs on the camera thread.
+   */
+  public void prepareCamera(String cameraId) {
+    Handler handler = backgroundHandler;
+    if (handler == null) {
+      return;
+    }
+    handler.post(() -> {
+      try {
+        getCameraProperties(cameraId);
+      } catch (CameraAccessException e) {
+        Log.w(TAG, "Failed to prepare camera " + cameraId, e);
       }
-      if (null != imageReader) {
-        imageReader.close();
-        imageReader = null;
+    });
+  }
+
+  /**
+   * Closes the camera, without blocking the caller. The close starts on the camera thread once
+   * earlier operations have finished; an open that has not started yet is cancelled instead.
+   */
+  public CameraOperation closeCameraAsync() {
+    Log.d(TAG, "closeCameraAsync");
+    Handler handler = getLifecycleHandler();
+    CameraOperation operation = CameraOperation.newClose();
+    captureButtonState.setEnabled(false);
+    synchronized (lifecycleLock) {
+      if (pendingOpen != null) {
+        Log.d(TAG, "cancelling pending open of camera " + pendingOpen.getCameraId());
+        pendingOpen.cancel();
+        pendingOpen = null;
       }
-      maxDigitalZoom = ZOOM_SCALE_1_00;
-      zoomSetting = ZOOM_SCALE_1_00;
-    } catch (InterruptedException e) {
-      throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-    } finally {
-      openCloseLock.release();
+      CompletableFuture<?> previous = getLastOperationFinished();
+      lastOperation = operation;
+      previous
+          .handle((result, t) -> null)
+          .thenRun(() -> handler.post(() -> startClose(operation)));
     }
+    return operation;
   }
 
-  /** Initiate a still image capture. */
+  /**
+   * Initiate a still image capture. If another capture is in flight, the capture is queued
+   * and started once the earlier captures complete.
+   */
   public void takePicture() {
-    lockFocus();
+    requestCapture(CaptureRequestQueue.SHOT_SINGLE, /*frameCount*/ 1);
   }
 
-  /** Initiate capture of back to back HDR+ and non-HDR shots. */
+  /** Initiate capture of back to back HDR+ and non-HDR shots. Queued like #takePicture. */
   public void takeDoubleShot() {
-    doubleShotPending = true;
-    lockFocus();
+    requestCapture(CaptureRequestQueue.SHOT_DOUBLE, /*frameCount*/ 2);
+  }
+
+  /**
+   * Initiate a burst of HDR+ shots. Focus and exposure are converged once, then all frames
+   * are submitted together with #captureBurst.
+   *
+   * @param frameCount the number of frames, from 1 to MAX_BURST_FRAMES
+   */
+  public void takeBurst(int frameCount) {
+    if (frameCount < 1 || frameCount > MAX_BURST_FRAMES) {
+      throw new IllegalArgumentException("out of bounds burst frame count: " + frameCount);
+    }
+    requestCapture(CaptureRequestQueue.SHOT_BURST, frameCount);
+  }
+
+  /** Sets the listener reporting the depth of the capture queue and the wait times. */
+  public void setCaptureQueueListener(CaptureRequestQueue.Listener listener) {
+    captureQueue.setListener(listener);
+  }
+
+  /** Returns the number of frames that queued, not yet started captures will produce. */
+  public int getPendingCaptureFrameCount() {
+    return captureQueue.getPendingFrameCount();
+  }
+
+  /**
+   * Returns the frames that have been requested but not delivered as images yet, excluding
+   * those of queued captures: frames of requests on their way to the camera thread, of the
+   * capture in progress, and of submitted still requests. May be called on any thread.
+   */
+  public int getInFlightFrameCount() {
+    return postedFrameCount.get() + captureSequence.getUnsubmittedFrameCount()
+        + imageBuffers.getInFlightCount();
+  }
+
+  /** Returns true once the preview is running and captures may be requested. */
+  public boolean isCaptureEnabled() {
+    return captureButtonState.isEnabled();
+  }
+
+  /** Sets the listener receiving the stage timestamps of each completed shot. */
+  public void setShotLatencyListener(ShotLatencyRecorder.Listener listener) {
+    shotLatencyRecorder.setListener(listener);
+  }
+
+  /**
+   * Call this once the client has written, or failed to write, an image delivered by the
+   * OnImageAvailableListener. Images are expected to be saved in the order they were delivered.
+   * Shots with an image that was not saved are reported as dropped rather than recorded.
+   */
+  public void onImageSaved(boolean success) {
+    if (success) {
+      shotLatencyRecorder.markFileWritten();
+    } else {
+      shotLatencyRecorder.markFileFailed();
+    }
+  }
+
+  /**
+   * Sets the maxImages of the jpeg ImageReader for a shot type of CaptureRequestQueue. Takes
+   * effect when the camera is next acquired. The reader is sized for single and double shots;
+   * the first burst replaces the session with one sized for bursts, if that is deeper. A burst
+   * needs a buffer per frame, plus those of the images the client holds while saving.
+   */
+  public void setImageReaderDepth(int shotType, int maxImages) {
+    if (shotType < CaptureRequestQueue.SHOT_SINGLE || shotType > CaptureRequestQueue.SHOT_BURST) {
+      throw new IllegalArgumentException("unknown shot type: " + shotType);
+    }
+    if (maxImages < 1) {
+      throw new IllegalArgumentException("image reader depth must be at least 1");
+    }
+    imageReaderDepths[shotType] = maxImages;
+  }
+
+  /** Returns the live accounting of the buffers of the current jpeg ImageReader. */
+  public ImageBufferTracker getImageBuffers() {
+    return imageBuffers;
   }
 
   /** Retrieves the maximum digital zoom as a scale factor. */
   public double getMaxZoom(String cameraId) {
-    CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
     try {
-      // Extract characteristics for the current camera.
-      CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-      maxDigitalZoom = characteristics.get(SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+      maxDigitalZoom = getCameraProperties(cameraId).getMaxDigitalZoom();
     } catch (CameraAccessException e) {
       Log.w(TAG, e);
     }
@@ -206,27 +434,188 @@ public final class Camera2Controller {
     return maxDigitalZoom;
   }
 
-  /** Sets the digital zoom. Must be called while the preview is active. */
+  /**
+   * Sets the digital zoom. Must be called while the preview is active. Zoom changes are
+   * coalesced: only the latest setting is applied, once the next preview frame has been
+   * delivered. The repeating request is replaced without stopping the stream.
+   */
   public void setZoom(double zoomSetting) {
-    Log.d(TAG, String.format("setZoom(x%.2f)", zoomSetting));
     if (zoomSetting > maxDigitalZoom) {
       throw new IllegalArgumentException("out of bounds zoom");
     }
-    this.zoomSetting = zoomSetting;
+    pendingZoomSetting = zoomSetting;
+    zoomUpdatePending = true;
+  }
 
-    try {
-      captureSession.stopRepeating();
-      setCropRegion(previewRequestBuilder, zoomSetting);
-      previewRequest = previewRequestBuilder.build();
-      captureSession.setRepeatingRequest(previewRequest, captureCallback, backgroundHandler);
-    } catch (CameraAccessException e) {
-      Log.w(TAG, e);
+  // ===============================================================================================
+
+  /**
+   * Queues a capture on the camera thread. Queue and state machine are only accessed there,
+   * which serializes requests made from the UI with the capture sequence.
+   */
+  private void requestCapture(int shotType, int frameCount) {
+    long requestTimeNs = System.nanoTime();
+    postedFrameCount.addAndGet(frameCount);
+    backgroundHandler.post(() -> startRequestedCapture(shotType, frameCount, requestTimeNs));
+  }
+
+  /** Hands a requested capture to the capture sequence. Camera thread only. */
+  private void startRequestedCapture(int shotType, int frameCount, long requestTimeNs) {
+    if (shotType == CaptureRequestQueue.SHOT_BURST && shouldReconfigureForBurst()) {
+      reconfigureSessionForBurst();
+    }
+    if (sessionReconfiguring) {
+      // The frames stay counted as posted until the capture is started.
+      capturesAwaitingSession.add(
+          new CaptureRequestQueue.PendingCapture(shotType, frameCount, requestTimeNs));
+      return;
+    }
+    postedFrameCount.addAndGet(-frameCount);
+    if (captureSession == null) {
+      Log.w(TAG, "capture requested without an active session");
+      return;
+    }
+    if (!captureSequence.requestCapture(shotType, frameCount, requestTimeNs)) {
+      Log.i(TAG, "capture request not queued, depth = " + captureQueue.getDepth());
+    }
+  }
+
+  /** Returns the maxImages for the session, see #setImageReaderDepth. */
+  private int getSessionImageReaderDepth() {
+    int depth = Math.max(imageReaderDepths[CaptureRequestQueue.SHOT_SINGLE],
+        imageReaderDepths[CaptureRequestQueue.SHOT_DOUBLE]);
+    return burstSession
+        ? Math.max(depth, imageReaderDepths[CaptureRequestQueue.SHOT_BURST]) : depth;
+  }
+
+  /**
+   * Returns true if a burst should replace the session with a deeper reader first. Only while
+   * no capture is in progress; otherwise the burst waits for buffers of the current reader.
+   */
+  private boolean shouldReconfigureForBurst() {
+    return captureSession != null
+        && !burstSession
+        && !captureSequence.isCaptureInProgress()
+        && imageReaderDepths[CaptureRequestQueue.SHOT_BURST] > imageReader.getMaxImages();
+  }
+
+  /**
+   * Replaces the session with one whose jpeg reader is sized for bursts. Captures requested in
+   * the meantime are started once the new session is configured.
+   */
+  private void reconfigureSessionForBurst() {
+    Log.i(TAG, "reconfiguring the session for bursts");
+    burstSession = true;
+    sessionReconfiguring = true;
+    captureSession.close();
+    captureSession = null;
+    configureImageReader(outputSize);
+    createCameraPreviewSession();
+  }
+
+  /** Ends a session reconfiguration, starting or dropping the captures waiting for it. */
+  private void finishSessionReconfiguration(boolean configured) {
+    if (!sessionReconfiguring) {
+      return;
+    }
+    sessionReconfiguring = false;
+    List<CaptureRequestQueue.PendingCapture> captures = new ArrayList<>(capturesAwaitingSession);
+    capturesAwaitingSession.clear();
+    for (CaptureRequestQueue.PendingCapture capture : captures) {
+      if (configured) {
+        startRequestedCapture(capture.shotType, capture.frameCount, capture.requestTimeNs);
+      } else {
+        postedFrameCount.addAndGet(-capture.frameCount);
+      }
     }
   }
 
   // ===============================================================================================
+  // Camera Lifecycle
+  // ===============================================================================================
+
+  private Handler getLifecycleHandler() {
+    Handler handler = backgroundHandler;
+    if (handler == null) {
+      throw new IllegalStateException("A background handler must be set before opening the camera");
+    }
+    return handler;
+  }
+
+  /** Returns a future that completes once the last requested operation has finished. */
+  private CompletableFuture<?> getLastOperationFinished() {
+    return (lastOperation != null)
+        ? lastOperation.finished() : CompletableFuture.completedFuture(null);
+  }
 
-  private void openCamera(int width, int height, Size outputSize) throws IOException {
+  /** Returns the size of the TextureView, once it is available. Main thread only. */
+  private CompletableFuture<Size> awaitSurface() {
+    if (textureView.isAvailable()) {
+      return CompletableFuture.completedFuture(
+          new Size(textureView.getWidth(), textureView.getHeight()));
+    }
+    if (surfaceReady == null) {
+      Log.d(TAG, "textureView not available, starting listener");
+      surfaceReady = new CompletableFuture<>();
+      textureView.setSurfaceTextureListener(surfaceTextureListener);
+    }
+    return surfaceReady;
+  }
+
+  /** Starts an open. Camera thread only. */
+  private void startOpen(
+      CameraOperation operation, Size surfaceSize, Size outputSize, double zoom) {
+    if (beginOpen(operation)) {
+      openWithSettings(operation, surfaceSize, outputSize, zoom);
+    }
+  }
+
+  /** Starts a switch. Camera thread only. */
+  private void startSwitch(
+      CameraOperation operation, Size surfaceSize, Size outputSize, double zoom) {
+    if (!beginOpen(operation)) {
+      return;
+    }
+    cancelCurrentOpen();
+    // The old device finishes closing in the camera service while the new one is opened.
+    closeSessionAndDevice();
+    if (!canReuseImageReader(outputSize)) {
+      closeImageReader();
+    }
+    resetCaptureState();
+    openWithSettings(operation, surfaceSize, outputSize, zoom);
+  }
+
+  /** Returns false if the open was cancelled before it started. */
+  private boolean beginOpen(CameraOperation operation) {
+    synchronized (lifecycleLock) {
+      if (pendingOpen == operation) {
+        pendingOpen = null;
+      }
+    }
+    if (operation.isFailed()) {
+      Log.d(TAG, "skipping " + operation);
+      return false;
+    }
+    operation.mark(CameraOperation.PHASE_STARTED);
+    return true;
+  }
+
+  private void openWithSettings(
+      CameraOperation operation, Size surfaceSize, Size outputSize, double zoom) {
+    zoomSetting = zoom;
+    pendingZoomSetting = zoom;
+    cameraId = operation.getCameraId();
+    try {
+      openCamera(operation, surfaceSize.getWidth(), surfaceSize.getHeight(), outputSize);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to open camera", e);
+      operation.fail(e);
+    }
+  }
+
+  private void openCamera(CameraOperation operation, int width, int height, Size outputSize)
+      throws IOException {
     Log.i(TAG, String.format("openCamera(%d, %d, outputSize(%d, %d))",
         width, height, outputSize.getWidth(), outputSize.getHeight()));
     this.outputSize = outputSize;
@@ -237,43 +626,136 @@ public final class Camera2Controller {
 
     CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
     try {
-      // The lock is released in the callbacks.
-      if (!openCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-        throw new RuntimeException("Time out waiting to lock camera opening.");
-      }
+      // The operation is completed in the callbacks.
+      currentOpen = operation;
       //noinspection MissingPermission
       manager.openCamera(cameraId, cameraStateCallback, backgroundHandler);
     } catch (CameraAccessException e) {
+      currentOpen = null;
       throw new IOException("Failed to open camera", e);
-    } catch (InterruptedException e) {
-      throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
     }
   }
 
+  /** Fails the open in progress, if any. Camera thread only. */
+  private void failCurrentOpen(Throwable t) {
+    if (currentOpen != null) {
+      currentOpen.fail(t);
+      currentOpen = null;
+    }
+  }
+
+  /** Closes the session, device and image reader. Camera thread only. */
+  private void startClose(CameraOperation operation) {
+    operation.mark(CameraOperation.PHASE_STARTED);
+    cancelCurrentOpen();
+    boolean closing = closeSessionAndDevice();
+    if (closing) {
+      // Completed in onClosed.
+      currentClose = operation;
+    }
+    closeImageReader();
+    resetCaptureState();
+    if (!closing) {
+      operation.markClosed();
+    }
+  }
+
+  /** Cancels an open whose preview has not been started, or has not delivered a frame. */
+  private void cancelCurrentOpen() {
+    if (currentOpen != null) {
+      currentOpen.cancel();
+      currentOpen = null;
+    }
+    if (firstFrameOperation != null) {
+      firstFrameOperation.cancel();
+      firstFrameOperation = null;
+    }
+  }
+
+  /** Returns true if a device was closed; onClosed follows. */
+  private boolean closeSessionAndDevice() {
+    if (null != captureSession) {
+      captureSession.close();
+      captureSession = null;
+    }
+    if (cameraDevice == null) {
+      return false;
+    }
+    cameraDevice.close();
+    cameraDevice = null;
+    return true;
+  }
+
+  private void closeImageReader() {
+    synchronized (imageReaderLock) {
+      if (null != imageReader) {
+        if (imageLeakDetector.getOutstandingCount() > 0) {
+          // Closing the reader invalidates its images, wait until the client released them.
+          Log.d(TAG, "deferring image reader close, images still owned by the client");
+          imageReadersPendingClose.add(imageReader);
+        } else {
+          imageReader.close();
+        }
+        imageReader = null;
+      }
+    }
+    // Images still owned by the client are accounted to the tracker of the closed reader.
+    imageBuffers = new ImageBufferTracker(getSessionImageReaderDepth());
+    captureMetadataMatcher.clear();
+  }
+
+  private void resetCaptureState() {
+    zoomSetting = ZOOM_SCALE_1_00;
+    zoomUpdatePending = false;
+    finishSessionReconfiguration(/*configured*/ false);
+    burstSession = false;
+    captureSequence.reset();
+    captureButtonState.setEnabled(false);
+  }
+
   private final CameraDevice.StateCallback cameraStateCallback = new CameraDevice.StateCallback() {
 
     @Override
     public void onOpened(@NonNull CameraDevice cameraDevice) {
       Log.i(TAG, "CameraDevice onOpened() " + cameraDevice.getId());
-      openCloseLock.release();
       Camera2Controller.this.cameraDevice = cameraDevice;
+      if (currentOpen != null) {
+        currentOpen.markOpened();
+      }
       createCameraPreviewSession();
     }
 
+    @Override
+    public void onClosed(@NonNull CameraDevice cameraDevice) {
+      Log.i(TAG, "CameraDevice onClosed() " + cameraDevice.getId());
+      if (currentClose != null) {
+        currentClose.markClosed();
+        Log.i(TAG, currentClose.toString());
+        currentClose = null;
+      }
+    }
+
     @Override
     public void onDisconnected(@NonNull CameraDevice cameraDevice) {
       Log.i(TAG, "CameraDevice onDisconnected() " + cameraDevice.getId());
-      openCloseLock.release();
       cameraDevice.close();
+      if (!cameraDevice.getId().equals(cameraId)) {
+        // The camera switched away from this device.
+        return;
+      }
       Camera2Controller.this.cameraDevice = null;
+      failCurrentOpen(new IOException("Camera disconnected"));
     }
 
     @Override
     public void onError(@NonNull CameraDevice cameraDevice, int error) {
       Log.w(TAG, "CameraDevice onError() id: " + cameraDevice.getId() + " error: " + error);
-      openCloseLock.release();
       cameraDevice.close();
+      if (!cameraDevice.getId().equals(cameraId)) {
+        return;
+      }
       Camera2Controller.this.cameraDevice = null;
+      failCurrentOpen(new IOException("Camera error " + error));
     }
   };
 
@@ -284,10 +766,10 @@ public final class Camera2Controller {
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
       Log.i(TAG, "onSurfaceTextureAvailable()");
-      try {
-        openCamera(width, height, outputSize);
-      } catch (IOException e) {
-        Log.w(TAG, "Failed to open camera", e);
+      CompletableFuture<Size> ready = surfaceReady;
+      surfaceReady = null;
+      if (ready != null) {
+        ready.complete(new Size(width, height));
       }
     }
 
@@ -317,40 +799,98 @@ public final class Camera2Controller {
    */
   private final ImageReader.OnImageAvailableListener onImageAvailableListener = reader -> {
     Log.d(TAG, "onImageAvailable()");
-    Image image = reader.acquireNextImage();
+    imagesWaitingForAcquire++;
+    acquireWaitingImages(reader);
+  };
+
+  /** Retries acquiring images after an owned image was released. */
+  private final Runnable acquireWaitingImages = () -> {
+    ImageReader reader = imageReader;
+    if (reader != null) {
+      acquireWaitingImages(reader);
+    }
+  };
+
+  /**
+   * Acquires and dispatches the images delivered to the reader. While the client owns all
+   * maxImages, images stay in the reader until one is released. Camera thread only.
+   */
+  private void acquireWaitingImages(ImageReader reader) {
+    while (imagesWaitingForAcquire > 0) {
+      Image image;
+      ImageBufferTracker buffers;
+      synchronized (imageReaderLock) {
+        if (reader != imageReader) {
+          return;
+        }
+        try {
+          image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+          Log.w(TAG, "waiting for the client to release an image, " + imageBuffers);
+          return;
+        }
+        if (image == null) {
+          imagesWaitingForAcquire = 0;
+          return;
+        }
+        imagesWaitingForAcquire--;
+        buffers = imageBuffers;
+        buffers.onImageAcquired();
+      }
+      shotLatencyRecorder.markImageAvailable();
+      dispatchImage(image, buffers);
+    }
+  }
+
+  private void dispatchImage(Image image, ImageBufferTracker buffers) {
+    OnImageOwnedListener ownedListener = clientOnImageOwnedListener;
+    if (ownedListener != null) {
+      OwnedImage ownedImage = new OwnedImage(image, buffers, System.nanoTime(),
+          captureMetadataMatcher.onImage(image.getTimestamp()), ownedImageReleaseListener);
+      imageLeakDetector.track(ownedImage);
+      ownedListener.onImageOwned(ownedImage);
+      return;
+    }
     if (clientOnImageAvailableListener != null) {
       clientOnImageAvailableListener.onImageAvailable(image);
     }
     image.close();
+    buffers.onImageReleased();
+  }
+
+  /** Called on the releasing thread, after the image was closed. */
+  private final OwnedImage.ReleaseListener ownedImageReleaseListener = ownedImage -> {
+    ownedImage.imageBuffers.onImageReleased();
+    synchronized (imageReaderLock) {
+      if (imageLeakDetector.untrack(ownedImage) == 0) {
+        for (ImageReader reader : imageReadersPendingClose) {
+          reader.close();
+        }
+        imageReadersPendingClose.clear();
+      }
+    }
+    Handler handler = backgroundHandler;
+    if (handler != null) {
+      handler.post(acquireWaitingImages);
+    }
   };
 
+  /** Returns the cached characteristics of the camera. */
+  private CameraProperties getCameraProperties(String cameraId) throws CameraAccessException {
+    CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    return CameraProperties.get(manager, cameraId);
+  }
+
   /** Fetches the camera characteristics for the current camera. */
   private boolean initCameraCharacteristics() {
-    CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
     try {
-      // Extract characteristics for the current camera.
-      CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-
-      activeArraySize = characteristics.get(SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-      maxDigitalZoom = characteristics.get(SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
-
-      // Require a stream configuration map. Don't know why there wouldn't be one.
-      StreamConfigurationMap map = characteristics.get(
-          CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-      if (map == null) {
-        throw new CameraAccessException(CameraAccessException.CAMERA_ERROR);
-      }
-
-      int facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-      boolean lensFacingFront = (facing == CameraCharacteristics.LENS_FACING_FRONT);
-      int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+      CameraProperties properties = getCameraProperties(cameraId);
+      cropRegionTable = properties.getCropRegionTable();
+      maxDigitalZoom = properties.getMaxDigitalZoom();
       outputOrientation = Orientation.getOutputOrientation(
-          lensFacingFront, displayRotationCode, sensorOrientation);
-
+          properties.isLensFacingFront(), displayRotationCode, properties.getSensorOrientation());
       return true;
-    } catch (CameraAccessException | NullPointerException e) {
-      // NPE's can be thrown when unboxing some of the characteristics. This should never happen
-      // on Pixel{1,2}.
+    } catch (CameraAccessException e) {
       Log.w(TAG, "Failed to inspect camera characteristics", e);
     }
     return false;
@@ -375,14 +915,42 @@ public final class Camera2Controller {
     // Disable autofit. Due to the system UI the preview does not fill the screen with
     // the correct aspect ratio. The view is laid out to fill the screen. This introduces
     // a small amount of distortion to the preview but fills the screen.
-    textureView.setAspectRatio(0, 0);
-    configureTransform(width, height);
+    // Called on the camera thread; the view is updated on the main thread.
+    textureView.post(() -> {
+      textureView.setAspectRatio(0, 0);
+      configureTransform(width, height);
+    });
   }
 
   private void configureImageReader(Size s) {
-    imageReader = ImageReader.newInstance(s.getWidth(), s.getHeight(),
-        ImageFormat.JPEG, /*maxImages*/2);
+    if (canReuseImageReader(s)) {
+      Log.d(TAG, "reusing image reader");
+      return;
+    }
+    closeImageReader();
+    // The camera waits for a free buffer when all maxImages are in use, see ImageBufferTracker.
+    int depth = getSessionImageReaderDepth();
+    Log.d(TAG, "image reader depth: " + depth);
+    imageReader = ImageReader.newInstance(s.getWidth(), s.getHeight(), ImageFormat.JPEG, depth);
     imageReader.setOnImageAvailableListener(onImageAvailableListener, backgroundHandler);
+    imagesWaitingForAcquire = 0;
+    imageBuffers = new ImageBufferTracker(depth);
+  }
+
+  /** Returns true if the current reader matches the output size and depth. */
+  private boolean canReuseImageReader(Size s) {
+    return imageReader != null
+        && imageReader.getWidth() == s.getWidth()
+        && imageReader.getHeight() == s.getHeight()
+        && imageReader.getMaxImages() == getSessionImageReaderDepth();
+  }
+
+  /** Reserves image buffers for still frames, logging frames that will wait for a buffer. */
+  private void reserveImageBuffers(int frameCount) {
+    int stalls = imageBuffers.onFramesSubmitted(frameCount);
+    if (stalls > 0) {
+      Log.w(TAG, stalls + " frame(s) will wait for an image buffer, " + imageBuffers);
+    }
   }
 
   private void configureTransform(int width, int height) {
@@ -391,18 +959,11 @@ public final class Camera2Controller {
 
   public Size[] getSupportedPictureSizes(String cameraId) {
     Size[] outputSizes = null;
-    CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
     try {
-      CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-      StreamConfigurationMap map = characteristics.get(
-          CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-      if (map != null) {
-        outputSizes = map.getOutputSizes(ImageFormat.JPEG);
-      }
+      outputSizes = getCameraProperties(cameraId).getJpegOutputSizes();
     } catch (CameraAccessException e) {
       Log.w(TAG, e);
     }
-
     return outputSizes;
   }
 
@@ -436,8 +997,8 @@ public final class Camera2Controller {
             @Override
             public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
               Log.d(TAG, "CaptureSession callback onConfigured()");
-              // The camera is already closed
-              if (null == cameraDevice) {
+              // The camera is already closed, or switched to another device.
+              if (null == cameraDevice || cameraCaptureSession.getDevice() != cameraDevice) {
                 return;
               }
 
@@ -450,26 +1011,39 @@ public final class Camera2Controller {
                     previewRequest, captureCallback, backgroundHandler);
               } catch (CameraAccessException e) {
                 Log.w(TAG, e);
+                failCurrentOpen(e);
+                finishSessionReconfiguration(/*configured*/ false);
+                return;
               }
+              if (currentOpen != null) {
+                currentOpen.markConfigured();
+                firstFrameOperation = currentOpen;
+                currentOpen = null;
+              }
+              finishSessionReconfiguration(/*configured*/ true);
             }
 
             @Override
             public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
               Log.w(TAG, "preview configuration failed");
+              if (cameraCaptureSession.getDevice() != cameraDevice) {
+                return;
+              }
+              failCurrentOpen(new IOException("Preview configuration failed"));
+              finishSessionReconfiguration(/*configured*/ false);
             }
 
             @Override
             public void onReady(@NonNull CameraCaptureSession session) {
               Log.d(TAG, "CaptureSession callback onReady()");
-              if (stillCapturePending) {
-                startStillCapture();
-                stillCapturePending = false;
-              }
+              captureSequence.onSessionReady();
             }
           }, null
       );
     } catch (CameraAccessException e) {
       Log.w(TAG, "Camera preview configuration failed", e);
+      failCurrentOpen(e);
+      finishSessionReconfiguration(/*configured*/ false);
     }
   }
 
@@ -543,47 +1117,78 @@ public final class Camera2Controller {
   }
 
   private void setCropRegion(CaptureRequest.Builder builder, double zoom) {
-    Log.d(TAG, String.format("setCropRegion(x%.2f)", zoom));
-    int width = (int) Math.floor(activeArraySize.width() / zoom);
-    int left = (activeArraySize.width() - width) / 2;
-    int height = (int) Math.floor(activeArraySize.height() / zoom);
-    int top = (activeArraySize.height() - height) / 2;
-    Log.d(TAG, String.format("crop region(left=%d, top=%d, right=%d, bottom=%d) zoom(%.2f)",
-        left, top, left + width, top + height, zoom));
+    builder.set(CaptureRequest.SCALER_CROP_REGION, cropRegionTable.get(zoom));
+  }
 
-    builder.set(CaptureRequest.SCALER_CROP_REGION,
-        new Rect(left, top, left + width, top + height));
+  /**
+   * Applies the latest zoom from #setZoom to the repeating preview request. Called on the camera
+   * thread for each completed preview frame. Deferred while a capture is in progress, the
+   * capture sequence owns the preview request until the preview has resumed.
+   */
+  private void applyPendingZoom() {
+    if (!zoomUpdatePending || captureSession == null || captureSequence.isCaptureInProgress()
+        || !captureSequence.isPreviewState()) {
+      return;
+    }
+    zoomUpdatePending = false;
+    zoomSetting = pendingZoomSetting;
+    try {
+      setCropRegion(previewRequestBuilder, zoomSetting);
+      previewRequest = previewRequestBuilder.build();
+      // Replaces the current repeating request, no need to stop the stream first.
+      captureSession.setRepeatingRequest(previewRequest, captureCallback, backgroundHandler);
+    } catch (CameraAccessException e) {
+      Log.w(TAG, e);
+    }
   }
 
   // ===============================================================================================
   // Capture Callback
   // ===============================================================================================
 
-  /** Camera state: Showing camera preview. */
-  private static final int STATE_PREVIEW = 0;
+  /** Takes still captures, issuing its requests on the capture session. Camera thread only. */
+  private final StillCaptureSequence captureSequence;
 
-  /** Camera state: Waiting for the focus to be locked. */
-  private static final int STATE_WAITING_LOCK = 1;
+  /** Issues the requests of the captureSequence on the capture session. */
+  private final StillCaptureSequence.Session sequenceSession = new StillCaptureSequence.Session() {
 
-  /** Camera state: Waiting for the exposure to be precapture state. */
-  private static final int STATE_WAITING_PRECAPTURE = 2;
+    @Override
+    public void triggerAutoFocus() {
+      lockFocus();
+    }
+
+    @Override
+    public void triggerPrecapture() {
+      runPrecaptureSequence();
+    }
 
-  /** Camera state: Waiting for the exposure state to be something other than precapture. */
-  private static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    @Override
+    public void stopRepeating() {
+      stopPreview();
+    }
 
-  /** Camera state: Picture was taken. */
-  private static final int STATE_PICTURE_TAKEN = 4;
+    @Override
+    public boolean captureStill(int frameCount, boolean zsl) {
+      return startStillCapture(frameCount, zsl);
+    }
 
-  private static final String[] STATE_NAMES = new String[]{
-      "Preview",
-      "Waiting Lock",
-      "Waiting Precapture Start",
-      "Waiting Precapture Finish",
-      "Picture Taken"
+    @Override
+    public void resumePreview() {
+      unlockFocus();
+    }
+
+    @Override
+    public void onStateChanged(int oldState, int newState) {
+      Log.i(TAG, "last state: " + CaptureStateMachine.STATE_NAMES[oldState]
+          + ", new state: " + CaptureStateMachine.STATE_NAMES[newState]);
+    }
   };
 
-  private int state = STATE_PREVIEW;
-  private int lastState = state;
+  /** Returns the int value of a result state, or RESULT_STATE_UNKNOWN if it is missing. */
+  private static int getResultState(CaptureResult result, CaptureResult.Key<Integer> key) {
+    Integer resultState = result.get(key);
+    return (resultState != null) ? resultState : CaptureStateMachine.RESULT_STATE_UNKNOWN;
+  }
 
   /**
    * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
@@ -591,83 +1196,13 @@ public final class Camera2Controller {
   private final CameraCaptureSession.CaptureCallback captureCallback
       = new CameraCaptureSession.CaptureCallback() {
 
-    /** Returns true if the result is equal to any one of the state flags. */
-    private boolean resultStateIsOneOf(int resultState, int... stateFlags) {
-      for (int flag : stateFlags) {
-        if (resultState == flag) {
-          return true;
-        }
-      }
-      return false;
-    }
-
-    /** Returns true if the lens is in a locked position after auto-focus has been triggered. */
-    private boolean lensLocked(int afState) {
-      return resultStateIsOneOf(
-        afState,
-        CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
-        CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED);
-    }
-
-    private boolean aeConverged(int aeState) {
-      return resultStateIsOneOf(aeState, CaptureResult.CONTROL_AE_STATE_CONVERGED);
-    }
-
-    private boolean precaptureStarted(int aeState) {
-      return resultStateIsOneOf(aeState,
-          CaptureResult.CONTROL_AE_STATE_PRECAPTURE,
-          CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED);
-    }
-
-    private boolean precaptureFinished(int aeState) {
-      return !resultStateIsOneOf(aeState, CaptureResult.CONTROL_AE_STATE_PRECAPTURE);
-    }
-
     private void process(CaptureResult result) {
-      switch (state) {
-        case STATE_PREVIEW: {
-          enableCaptureButtons(true);
-          break;
-        }
-        case STATE_WAITING_LOCK: {
-          enableCaptureButtons(false);
-          Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-          if (afState == null) {
-            captureStillPicture();
-          } else if (lensLocked(afState)) {
-            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-            if (aeState == null || aeConverged(aeState)) {
-              state = STATE_PICTURE_TAKEN;
-              captureStillPicture();
-            } else {
-              runPrecaptureSequence();
-            }
-          }
-          break;
-        }
-        case STATE_WAITING_PRECAPTURE: {
-          Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-          if (aeState == null || precaptureStarted(aeState)) {
-            state = STATE_WAITING_NON_PRECAPTURE;
-          }
-          break;
-        }
-        case STATE_WAITING_NON_PRECAPTURE: {
-          Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-          if (aeState == null || precaptureFinished(aeState)) {
-            state = STATE_PICTURE_TAKEN;
-            captureStillPicture();
-          }
-          break;
-        }
-        case STATE_PICTURE_TAKEN:
-          break;
-        default:
-          Log.e(TAG, "Invalid state: " + state);
-      }
-      if (state != lastState) {
-        Log.i(TAG, "last state: " + STATE_NAMES[lastState] + ", new state: " + STATE_NAMES[state]);
-        lastState = state;
+      if (captureSequence.isPreviewState()) {
+        captureButtonState.setEnabled(true);
+      } else {
+        captureSequence.onPreviewResult(
+            getResultState(result, CaptureResult.CONTROL_AF_STATE),
+            getResultState(result, CaptureResult.CONTROL_AE_STATE));
       }
     }
 
@@ -682,36 +1217,40 @@ public final class Camera2Controller {
     public void onCaptureCompleted(@NonNull CameraCaptureSession session,
         @NonNull CaptureRequest request,
         @NonNull TotalCaptureResult result) {
+      if (firstFrameOperation != null) {
+        firstFrameOperation.markFirstFrame();
+        Log.i(TAG, firstFrameOperation.toString());
+        firstFrameOperation = null;
+      }
       process(result);
+      applyPendingZoom();
     }
   };
 
   /**
-   * Capture a still picture. This method should be called when we get a response in
-   * {@link #captureCallback} from both {@link #lockFocus()}.
+   * Stops the preview once focus and exposure are ready. The still requests are submitted once
+   * the request queue has been flushed (onReady), to avoid capturing preview frames.
    */
-  private void captureStillPicture() {
+  private void stopPreview() {
     try {
       if (null == cameraDevice) {
         return;
       }
       captureSession.stopRepeating();
-      // Wait for the preview requests to stop before issuing the still capture request
-      // to avoid capturing preview frames.
-      stillCapturePending = true;
     } catch (CameraAccessException e) {
       Log.w(TAG, e);
     }
   }
 
   /**
-   *  Once request queue has been flushed (onReady), kick off the capture
-   *  to avoid capturing previews.
+   * Submits the still requests of a single shot or a burst. A burst is submitted at once:
+   * focus and exposure were converged by the capture sequence, so the frames are captured
+   * back to back. Returns false if the requests could not be submitted.
    */
-  private void startStillCapture() {
+  private boolean startStillCapture(int frameCount, boolean zsl) {
     try {
       if (null == cameraDevice) {
-        return;
+        return false;
       }
 
       // HDR+: The app must target api 26+ in order to pick up the set of default
@@ -728,32 +1267,57 @@ public final class Camera2Controller {
       setCaptureSessionOrientation(captureBuilder);
 
       // HDR+: CaptureRequest.CONTROL_ENABLE_ZSL is set to true for HDR+ shots.
-      Log.d(TAG, "non-hdr+ shot pending: " + nonHdrPlusShotPending);
-      captureBuilder.set(CaptureRequest.CONTROL_ENABLE_ZSL, !nonHdrPlusShotPending);
-      nonHdrPlusShotPending = false;
-      Log.d(TAG, "CONTROL_ENABLE_ZSL = " + captureBuilder.get(CaptureRequest.CONTROL_ENABLE_ZSL));
-
-      CameraCaptureSession.CaptureCallback captureCallback
-          = new CameraCaptureSession.CaptureCallback() {
-
-        @Override
-        public void onCaptureCompleted(
-            @NonNull CameraCaptureSession session,
-            @NonNull CaptureRequest request,
-            @NonNull TotalCaptureResult result) {
-          Log.d(TAG, "onCaptureCompleted, double shot pending = " + doubleShotPending);
-          if (doubleShotPending) {
-            doubleShotPending = false;
-            nonHdrPlusShotPending = true;
-            lockFocus();
-          } else {
-            unlockFocus();
-          }
+      captureBuilder.set(CaptureRequest.CONTROL_ENABLE_ZSL, zsl);
+      Log.d(TAG, "startStillCapture, frames = " + frameCount + ", CONTROL_ENABLE_ZSL = "
+          + captureBuilder.get(CaptureRequest.CONTROL_ENABLE_ZSL));
+
+      if (frameCount == 1) {
+        captureSession.capture(captureBuilder.build(), stillCaptureCallback, backgroundHandler);
+      } else {
+        CaptureRequest request = captureBuilder.build();
+        List<CaptureRequest> requests = new ArrayList<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+          requests.add(request);
         }
-      };
-      captureSession.capture(captureBuilder.build(), captureCallback, null);
+        captureSession.captureBurst(requests, stillCaptureCallback, backgroundHandler);
+      }
+      reserveImageBuffers(frameCount);
+      return true;
     } catch (CameraAccessException e) {
       Log.w(TAG, e);
+      return false;
+    }
+  }
+
+  /** Reports each still frame to the capture sequence. */
+  private final CameraCaptureSession.CaptureCallback stillCaptureCallback
+      = new CameraCaptureSession.CaptureCallback() {
+
+    @Override
+    public void onCaptureCompleted(
+        @NonNull CameraCaptureSession session,
+        @NonNull CaptureRequest request,
+        @NonNull TotalCaptureResult result) {
+      onStillResult(result);
+      captureSequence.onStillFrameCompleted();
+    }
+
+    @Override
+    public void onCaptureFailed(
+        @NonNull CameraCaptureSession session,
+        @NonNull CaptureRequest request,
+        @NonNull CaptureFailure failure) {
+      Log.w(TAG, "still capture failed, reason: " + failure.getReason());
+      imageBuffers.onFrameFailed();
+      captureSequence.onStillFrameFailed();
+    }
+  };
+
+  /** Hands the result of a still frame to the matcher, to be paired with its image. */
+  private void onStillResult(TotalCaptureResult result) {
+    CaptureMetadata metadata = CaptureMetadata.fromResult(result);
+    if (metadata != null) {
+      captureMetadataMatcher.onResult(metadata);
     }
   }
 
@@ -762,7 +1326,6 @@ public final class Camera2Controller {
    */
   private void lockFocus() {
     try {
-      state = STATE_WAITING_LOCK;
       setAfTriggerStart(previewRequestBuilder);
       captureSession.capture(previewRequestBuilder.build(), captureCallback, backgroundHandler);
       setAfTriggerIdle(previewRequestBuilder);
@@ -777,8 +1340,6 @@ public final class Camera2Controller {
    */
   private void unlockFocus() {
     try {
-      state = STATE_PREVIEW;
-
       // Send a single request to cancel any AF in progress.
       setAfTriggerCancel(previewRequestBuilder);
       captureSession.capture(previewRequestBuilder.build(), captureCallback, backgroundHandler);
@@ -792,13 +1353,11 @@ public final class Camera2Controller {
   }
 
   /**
-   * Run the precapture sequence for capturing a still image. This method should be called when
-   * we get a response in {@link #captureCallback} from {@link #lockFocus()}.
+   * Run the precapture sequence for capturing a still image. This method is called by the
+   * {@link #captureSequence} once the focus is locked, if AE has not converged.
    */
   private void runPrecaptureSequence() {
     try {
-      state = STATE_WAITING_PRECAPTURE;
-
       setAePrecaptureTriggerStart(previewRequestBuilder);
       captureSession.capture(previewRequestBuilder.build(), captureCallback, backgroundHandler);
       setAePrecaptureTriggerIdle(previewRequestBuilder);
@@ -806,11 +1365,4 @@ public final class Camera2Controller {
       Log.w(TAG, e);
     }
   }
-
-  /** Called from a background thread. */
-  private void enableCaptureButtons(boolean enable) {
-    // Ensure all UI operations happen on the main thread.
-    captureButton.post(() -> captureButton.setEnabled(enable));
-    doubleShotButton.post(() -> doubleShotButton.setEnabled(enable));
-  }
 }
@@ -33,11 +33,23 @@ import android.widget.ImageButton;
 import android.widget.Toast;
 import com.google.android.imaging.pixelvisualcorecamera.R;
 import com.google.android.imaging.pixelvisualcorecamera.common.FileSystem;
+import com.google.android.imaging.pixelvisualcorecamera.common.ImageSaver;
+import com.google.android.imaging.pixelvisualcorecamera.common.ImageSaver.BackPressurePolicy;
 import com.google.android.imaging.pixelvisualcorecamera.common.Intents;
 import com.google.android.imaging.pixelvisualcorecamera.common.Preferences;
+import com.google.android.imaging.pixelvisualcorecamera.common.StorageAdmission;
 import com.google.android.imaging.pixelvisualcorecamera.common.Toasts;
 import com.google.android.imaging.pixelvisualcorecamera.common.Utils;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  *  Primary activity for an API 2 camera.
@@ -49,6 +61,19 @@ public class CameraApi2Activity extends Activity {
   private static final String CAMERA_FACING_BACK = "0";
   private static final String CAMERA_FACING_FRONT = "1";
   private static final String STATE_ZOOM = "zoom";
+  private static final int BURST_FRAME_COUNT = Camera2Controller.MAX_BURST_FRAMES;
+
+  /** Leaves room for a full burst, so that bursts are never refused by an idle saver. */
+  private static final int SAVE_QUEUE_DEPTH = Camera2Controller.MAX_BURST_FRAMES;
+
+  /** Captures that may wait for the one in flight; further taps are refused. */
+  private static final int CAPTURE_QUEUE_DEPTH = 4;
+
+  /** Every tap is a shot of its own, so identical captures are queued rather than coalesced. */
+  private static final boolean COALESCE_CAPTURES = false;
+
+  /** How long the saver waits for a capture result that has not arrived with its image. */
+  private static final long CAPTURE_RESULT_TIMEOUT_MS = 500;
 
   private String cameraId;
   private HandlerThread backgroundThread;
@@ -60,9 +85,62 @@ public class CameraApi2Activity extends Activity {
   private ZoomScaleGestureListener zoomScaleGestureListener;
   private boolean resumed;
   private boolean cameraAcquired;
+  /** Saves the shots taken while resumed. A new saver is started on each resume. */
+  private volatile ImageSaver imageSaver;
+  /** Records the metadata of the shots saved while resumed. Written by the saver thread. */
+  private volatile CaptureMetadataLog captureMetadataLog;
+
+  private final ImageSaver.OnSaveCompleteListener onSaveCompleteListener = result -> {
+    if (!result.success) {
+      Log.w(TAG, "image was not saved");
+    }
+    cameraController.onImageSaved(result.success);
+  };
 
-  private final Camera2Controller.OnImageAvailableListener onImageAvailableListener =
-      (image) -> FileSystem.saveImage(getApplicationContext(), image, /*isApi1*/ false);
+  private final ShotLatencyRecorder.Listener shotLatencyListener =
+      new ShotLatencyRecorder.Listener() {
+
+    @Override
+    public void onShotRecorded(ShotLatencyRecord record) {
+      Log.i(TAG, record.toString());
+      Log.d(TAG, "image buffers: " + cameraController.getImageBuffers());
+    }
+
+    @Override
+    public void onShotDropped(int shotId, String reason) {
+      Log.w(TAG, "shot " + shotId + " not recorded: " + reason);
+    }
+  };
+
+  private final CaptureRequestQueue.Listener captureQueueListener =
+      new CaptureRequestQueue.Listener() {
+
+    @Override
+    public void onCaptureQueued(int depth) {
+      Log.d(TAG, "capture queued, depth = " + depth);
+    }
+
+    @Override
+    public void onCaptureDequeued(int depth, long waitTimeNs) {
+      Log.d(TAG, "capture started after " + waitTimeNs / 1000000 + "ms, depth = " + depth);
+    }
+  };
+
+  /**
+   * Takes ownership of the image, the saver thread writes it straight from the reader's buffer.
+   * The image is released once it has been written, then its capture metadata is logged.
+   */
+  private final Camera2Controller.OnImageOwnedListener onImageOwnedListener = (image) -> {
+    ByteBuffer data = image.getImage().getPlanes()[0].getBuffer();
+    CaptureMetadataLog metadataLog = captureMetadataLog;
+    imageSaver.submit(data, result -> {
+      image.release();
+      onSaveCompleteListener.onSaveComplete(result);
+      if (result.success) {
+        appendCaptureMetadata(metadataLog, result.file, image.getMetadata());
+      }
+    });
+  };
 
   // ===============================================================================================
   // Activity Framework Callbacks
@@ -73,15 +151,31 @@ public class CameraApi2Activity extends Activity {
     super.onCreate(savedInstanceState);
     Log.d(TAG, "[onCreate]");
     preferences = new Preferences(this);
+    FileSystem.setWritePolicy(preferences.getWritePolicy());
     setContentView(R.layout.camera2);
     AutoFitTextureView textureView = findViewById(R.id.camera_preview);
     Utils.setSystemUiOptionsForFullscreen(this);
 
     Button captureButton = findViewById(R.id.button_capture);
-    captureButton.setOnClickListener(v -> cameraController.takePicture());
+    captureButton.setOnClickListener(v -> {
+      if (acceptCapture(/*imageCount*/ 1) == 1) {
+        cameraController.takePicture();
+      }
+    });
+    captureButton.setOnLongClickListener(v -> {
+      int frameCount = acceptCapture(BURST_FRAME_COUNT);
+      if (frameCount > 0) {
+        cameraController.takeBurst(frameCount);
+      }
+      return true;
+    });
     Button doubleShotButton = findViewById(R.id.doubleshot_button);
     doubleShotButton.setVisibility(View.VISIBLE);
-    doubleShotButton.setOnClickListener(v -> cameraController.takeDoubleShot());
+    doubleShotButton.setOnClickListener(v -> {
+      if (acceptCapture(/*imageCount*/ 2) == 2) {
+        cameraController.takeDoubleShot();
+      }
+    });
 
     cameraController = new Camera2Controller(
         getApplicationContext(),
@@ -89,7 +183,19 @@ public class CameraApi2Activity extends Activity {
         captureButton,
         doubleShotButton,
         textureView,
-        onImageAvailableListener);
+        /*clientOnImageAvailableListener*/ null,
+        CAPTURE_QUEUE_DEPTH,
+        COALESCE_CAPTURES);
+    cameraController.setOnImageOwnedListener(onImageOwnedListener);
+    // Single and double shots keep the default depth. A burst fills the saver queue, and its
+    // images are held until saved: a buffer per queued image, plus the one being written.
+    cameraController.setImageReaderDepth(CaptureRequestQueue.SHOT_BURST, SAVE_QUEUE_DEPTH + 1);
+    cameraController.setShotLatencyListener(shotLatencyListener);
+    cameraController.setCaptureQueueListener(captureQueueListener);
+    // The camera thread lives as long as the activity, so that a close started in onPause
+    // can finish without blocking.
+    startBackgroundThread();
+    cameraController.setBackgroundHandler(backgroundHandler);
 
     initTopControls();
     configureOutputSize();
@@ -114,8 +220,10 @@ public class CameraApi2Activity extends Activity {
   public void onResume() {
     super.onResume();
     Log.d(TAG, "[onResume]");
-    startBackgroundThread();
-    cameraController.setBackgroundHandler(backgroundHandler);
+    captureMetadataLog = new CaptureMetadataLog(FileSystem.newCaptureMetadataFile());
+    imageSaver = new ImageSaver(SAVE_QUEUE_DEPTH, BackPressurePolicy.REFUSE_CAPTURE,
+        data -> FileSystem.saveImage(getApplicationContext(), data, /*isApi1*/ false));
+    imageSaver.start();
     zoomScaleGestureListener.initZoomParameters(cameraId);
     resumed = true;
     acquireCameraIfReady();
@@ -126,8 +234,16 @@ public class CameraApi2Activity extends Activity {
     super.onPause();
     Log.d(TAG, "[onPause]");
     resumed = false;
-    cameraController.closeCamera();
+    CameraOperation close = cameraController.closeCameraAsync();
     cameraAcquired = false;
+    stopSavingWhenClosed(close);
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    Log.d(TAG, "[onDestroy]");
+    // Runs the close requested in onPause, if it has not finished yet.
     stopBackgroundThread();
   }
 
@@ -142,21 +258,141 @@ public class CameraApi2Activity extends Activity {
     return zoomScaleGestureDetector.onTouchEvent(event);
   }
 
+  /**
+   * Returns how many images of a new capture may be taken: all of them, fewer if storage is
+   * running short, or 0 if the saver or storage can not take another shot.
+   */
+  private int acceptCapture(int imageCount) {
+    // Frames of captures that are queued or in flight will also need room in the saver.
+    int queuedFrameCount = cameraController.getPendingCaptureFrameCount()
+        + cameraController.getInFlightFrameCount();
+    if (!imageSaver.isAcceptingCaptures(imageCount + queuedFrameCount)) {
+      Log.i(TAG, "capture refused, save queue full: " + imageSaver.getPendingCount());
+      Toasts.showToast(this, "Still saving, please wait", Toast.LENGTH_SHORT);
+      return 0;
+    }
+    StorageAdmission admission = FileSystem.getStorageAdmission();
+    StorageAdmission.Decision decision = admission.admit(imageCount,
+        queuedFrameCount + imageSaver.getPendingCount(),
+        (long) outputSize.getWidth() * outputSize.getHeight());
+    switch (decision.outcome) {
+      case ACCEPT:
+        break;
+      case THROTTLE:
+        Log.i(TAG, "capture of " + imageCount + " throttled: " + decision + ", " + admission);
+        break;
+      case DEFER:
+        Log.i(TAG, "capture deferred: " + decision + ", " + admission);
+        Toasts.showToast(this, "Still saving, please wait", Toast.LENGTH_SHORT);
+        break;
+      case REFUSE:
+        Log.w(TAG, "capture refused: " + decision + ", " + admission);
+        Toasts.showToast(this, "Storage is full", Toast.LENGTH_LONG);
+        break;
+    }
+    return decision.frameCount;
+  }
+
+  /** Logs the metadata of a saved shot. Called on the saver thread. */
+  private void appendCaptureMetadata(CaptureMetadataLog metadataLog, File jpeg,
+      CompletableFuture<CaptureMetadata> future) {
+    CaptureMetadata metadata;
+    try {
+      // The result normally arrives long before the jpeg has been written.
+      metadata = future.get(CAPTURE_RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException | TimeoutException e) {
+      metadata = null;
+    }
+    if (metadata == null) {
+      Log.w(TAG, "no capture result for " + jpeg.getName());
+      return;
+    }
+    try {
+      metadataLog.append(jpeg.getName(), metadata);
+    } catch (IOException e) {
+      Log.w(TAG, "failed to log capture metadata", e);
+    }
+  }
+
+  /**
+   * Stops the saver of this resume once the camera has closed, as images are delivered until
+   * then, and closes the metadata log once the saver has written them all. Does not block: the
+   * saver is stopped on the camera thread and drains on its own. An image that arrives after
+   * the stop anyway is failed by the saver, and released by its callback.
+   */
+  private void stopSavingWhenClosed(CameraOperation close) {
+    ImageSaver saver = imageSaver;
+    CaptureMetadataLog metadataLog = captureMetadataLog;
+    close.closed()
+        .handle((operation, t) -> {
+          if (t != null) {
+            Log.w(TAG, "camera close failed, stopping the saver", t);
+          }
+          return operation;
+        })
+        .thenCompose(operation -> saver.stop())
+        .thenRun(() -> closeCaptureMetadataLog(metadataLog));
+  }
+
+  /** Called once the saver has written every shot of the log. */
+  private static void closeCaptureMetadataLog(CaptureMetadataLog metadataLog) {
+    try {
+      metadataLog.close();
+    } catch (IOException e) {
+      Log.w(TAG, "failed to close capture metadata log", e);
+    }
+    if (metadataLog.getRecordCount() > 0) {
+      Log.i(TAG, "logged metadata of " + metadataLog.getRecordCount() + " shots to "
+          + metadataLog.getFile());
+    }
+  }
+
   /** Acquires the camera if the window has focus and the activity has been resumed. */
   private void acquireCameraIfReady() {
     if (!cameraAcquired && resumed && hasWindowFocus()) {
-      try {
-        cameraController.acquireCamera(cameraId, outputSize, zoomScaleGestureListener.getZoom());
-        cameraAcquired = true;
-      } catch (IOException e) {
-        String errorMessage = "Failed to acquire camera";
-        Toasts.showToast(this, errorMessage, Toast.LENGTH_LONG);
-        Log.w(TAG, errorMessage, e);
-        finish();
-      }
+      openCamera(/*finishOnFailure*/ true);
     }
   }
 
+  /** Starts opening the camera. Failures are reported once the open has completed. */
+  private void openCamera(boolean finishOnFailure) {
+    CameraOperation operation =
+        cameraController.openCameraAsync(cameraId, outputSize, zoomScaleGestureListener.getZoom());
+    watchOpen(operation, finishOnFailure);
+    cameraAcquired = true;
+  }
+
+  /**
+   * Reports failures of an open or switch. Once the preview runs, the other camera is prepared
+   * so that a switch to it does not wait for its characteristics.
+   */
+  private void watchOpen(CameraOperation operation, boolean finishOnFailure) {
+    String otherCameraId = getOtherCameraId(operation.getCameraId());
+    operation.firstFrame().thenRun(() -> cameraController.prepareCamera(otherCameraId));
+    operation.configured()
+        .whenComplete((result, t) -> {
+          if (t == null) {
+            return;
+          }
+          Throwable cause = (t instanceof CompletionException) ? t.getCause() : t;
+          if (cause instanceof CancellationException) {
+            // Superseded by a close, e.g., the activity was paused.
+            return;
+          }
+          String errorMessage = "Failed to acquire camera";
+          Log.w(TAG, errorMessage, cause);
+          if (finishOnFailure) {
+            runOnUiThread(() -> {
+              Toasts.showToast(this, errorMessage, Toast.LENGTH_LONG);
+              finish();
+            });
+          }
+        });
+  }
+
   // ===============================================================================================
   // Top Controls
   // ===============================================================================================
@@ -212,48 +448,52 @@ public class CameraApi2Activity extends Activity {
 
     @Override
     public void onClick(View view) {
-      Log.i(TAG, "changing cameras, releasing camera");
-      // Swap camera ids.
-      switch (cameraId) {
-        case CAMERA_FACING_BACK:
-          cameraId = CAMERA_FACING_FRONT;
-          break;
-        case CAMERA_FACING_FRONT:
-          cameraId = CAMERA_FACING_BACK;
-          break;
-        default:
-          Log.e(TAG, "unrecognized camera id: " + cameraId);
-          cameraId = CAMERA_FACING_BACK;
-      }
+      Log.i(TAG, "changing cameras");
+      cameraId = getOtherCameraId(cameraId);
       preferences.setCameraId(Integer.valueOf(cameraId));
       setCameraIconForCurrentCamera();
-
-      Log.i(TAG, "restarting with new camera");
       zoomScaleGestureListener.reset();
-      closeAndOpenCamera();
+      switchCamera();
     }
   };
 
-  /** Call this when the camera is not acquired, to select the output size when it is acquired. */
-  private void configureOutputSize() {
-    Log.d(TAG, "configureOutputSize");
-    Size[] sizes = cameraController.getSupportedPictureSizes(cameraId);
-    outputSize = sizes[0];
+  /** Returns the id of the camera facing the other way. */
+  private static String getOtherCameraId(String cameraId) {
+    switch (cameraId) {
+      case CAMERA_FACING_BACK:
+        return CAMERA_FACING_FRONT;
+      case CAMERA_FACING_FRONT:
+        return CAMERA_FACING_BACK;
+      default:
+        Log.e(TAG, "unrecognized camera id: " + cameraId);
+        return CAMERA_FACING_BACK;
+    }
   }
 
-  /** Closes the camera and reacquires with the given outputSize. */
-  private void closeAndOpenCamera() {
-    Log.d(TAG, "closeAndOpenCamera");
-    cameraController.closeCamera();
-    cameraAcquired = false;
+  /** Switches the acquired camera to cameraId, logging the time to the first preview frame. */
+  private void switchCamera() {
     configureOutputSize();
     zoomScaleGestureListener.initZoomParameters(cameraId);
-    try {
-      cameraController.acquireCamera(cameraId, outputSize, zoomScaleGestureListener.getZoom());
-      cameraAcquired = true;
-    } catch (IOException e) {
-      Log.w(TAG, e);
+    if (!cameraAcquired) {
+      // Opened once the activity is resumed and focused.
+      return;
     }
+    CameraOperation operation = cameraController.switchCameraAsync(
+        cameraId, outputSize, zoomScaleGestureListener.getZoom());
+    watchOpen(operation, /*finishOnFailure*/ false);
+    operation.firstFrame().thenAccept(result -> {
+      long latencyNs = result.getDurationNanos(
+          CameraOperation.PHASE_REQUESTED, CameraOperation.PHASE_FIRST_FRAME);
+      Log.i(TAG, String.format(Locale.US, "camera switch to %s took %.1fms",
+          result.getCameraId(), latencyNs / 1e6));
+    });
+  }
+
+  /** Selects the output size with which cameraId is opened next. */
+  private void configureOutputSize() {
+    Log.d(TAG, "configureOutputSize");
+    Size[] sizes = cameraController.getSupportedPictureSizes(cameraId);
+    outputSize = sizes[0];
   }
 
   // ===============================================================================================
@@ -0,0 +1,243 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An asynchronous open, close or switch of the camera, see Camera2Controller#openCameraAsync,
+ * #closeCameraAsync and #switchCameraAsync. Operations run one at a time, in the order they
+ * were requested. The futures complete on the camera thread, and record the time each phase
+ * was reached.
+ *
+ * <p>An open or switch completes #opened when the device is open, #configured once the preview
+ * request is set and #firstFrame with the first preview result; a close completes #closed when
+ * the device has been closed. An open or switch that is followed by a close before it started
+ * is cancelled, its futures fail with a CancellationException.
+ */
+public final class CameraOperation {
+
+  /** Phase: the operation was requested. */
+  public static final int PHASE_REQUESTED = 0;
+
+  /** Phase: the earlier operations finished and this one was started on the camera thread. */
+  public static final int PHASE_STARTED = 1;
+
+  /** Phase, open only: CameraDevice.StateCallback#onOpened was received. */
+  public static final int PHASE_OPENED = 2;
+
+  /** Phase, open only: the capture session was configured and the preview request set. */
+  public static final int PHASE_CONFIGURED = 3;
+
+  /** Phase, close only: CameraDevice.StateCallback#onClosed was received. */
+  public static final int PHASE_CLOSED = 4;
+
+  /** Phase, open only: the first preview result was received. */
+  public static final int PHASE_FIRST_FRAME = 5;
+
+  private static final int PHASE_COUNT = 6;
+
+  private static final String[] PHASE_NAMES = new String[]{
+      "Requested",
+      "Started",
+      "Opened",
+      "Configured",
+      "Closed",
+      "First frame"
+  };
+
+  private static final int TYPE_OPEN = 0;
+  private static final int TYPE_CLOSE = 1;
+  private static final int TYPE_SWITCH = 2;
+
+  private static final long NOT_REACHED = 0;
+
+  private final int type;
+  private final String cameraId;
+  private final long[] timestampsNs = new long[PHASE_COUNT];
+  private final CompletableFuture<CameraOperation> opened = new CompletableFuture<>();
+  private final CompletableFuture<CameraOperation> configured = new CompletableFuture<>();
+  private final CompletableFuture<CameraOperation> closed = new CompletableFuture<>();
+  private final CompletableFuture<CameraOperation> firstFrame = new CompletableFuture<>();
+
+  private CameraOperation(int type, String cameraId) {
+    this.type = type;
+    this.cameraId = cameraId;
+    mark(PHASE_REQUESTED);
+  }
+
+  static CameraOperation newOpen(String cameraId) {
+    return new CameraOperation(TYPE_OPEN, cameraId);
+  }
+
+  static CameraOperation newClose() {
+    return new CameraOperation(TYPE_CLOSE, null);
+  }
+
+  /** A switch closes the current camera and opens another, see #isOpen. */
+  static CameraOperation newSwitch(String cameraId) {
+    return new CameraOperation(TYPE_SWITCH, cameraId);
+  }
+
+  /** Returns true for an open or a switch, false for a close. */
+  public boolean isOpen() {
+    return type != TYPE_CLOSE;
+  }
+
+  public boolean isSwitch() {
+    return type == TYPE_SWITCH;
+  }
+
+  /** Returns the id of the camera being opened, or null for a close. */
+  public String getCameraId() {
+    return cameraId;
+  }
+
+  /** Completes when the camera device is open. Open only. */
+  public CompletableFuture<CameraOperation> opened() {
+    checkOpen(true);
+    return opened;
+  }
+
+  /** Completes when the preview is running. Open only. */
+  public CompletableFuture<CameraOperation> configured() {
+    checkOpen(true);
+    return configured;
+  }
+
+  /** Completes when the first preview frame has been captured. Open only. */
+  public CompletableFuture<CameraOperation> firstFrame() {
+    checkOpen(true);
+    return firstFrame;
+  }
+
+  /** Completes when the camera device is closed. Close only. */
+  public CompletableFuture<CameraOperation> closed() {
+    checkOpen(false);
+    return closed;
+  }
+
+  /** Returns true if the phase was reached. */
+  public synchronized boolean hasPhase(int phase) {
+    return timestampsNs[phase] != NOT_REACHED;
+  }
+
+  /** Returns the time between two phases in nanoseconds, or -1 if either was not reached. */
+  public synchronized long getDurationNanos(int fromPhase, int toPhase) {
+    if (!hasPhase(fromPhase) || !hasPhase(toPhase)) {
+      return -1;
+    }
+    return timestampsNs[toPhase] - timestampsNs[fromPhase];
+  }
+
+  public static String getPhaseName(int phase) {
+    return PHASE_NAMES[phase];
+  }
+
+  // ===============================================================================================
+  // Controller Interface
+  // ===============================================================================================
+
+  /**
+   * Completes when the next operation may start: once the device is open, or the open failed,
+   * for an open; once the device is closed for a close.
+   */
+  CompletableFuture<CameraOperation> finished() {
+    return isOpen() ? opened : closed;
+  }
+
+  /** Returns true once the operation has failed or been cancelled. */
+  boolean isFailed() {
+    return finished().isCompletedExceptionally() || configured.isCompletedExceptionally()
+        || firstFrame.isCompletedExceptionally();
+  }
+
+  synchronized void mark(int phase) {
+    timestampsNs[phase] = System.nanoTime();
+  }
+
+  void markOpened() {
+    mark(PHASE_OPENED);
+    opened.complete(this);
+  }
+
+  void markConfigured() {
+    mark(PHASE_CONFIGURED);
+    configured.complete(this);
+  }
+
+  void markFirstFrame() {
+    mark(PHASE_FIRST_FRAME);
+    firstFrame.complete(this);
+  }
+
+  void markClosed() {
+    mark(PHASE_CLOSED);
+    closed.complete(this);
+  }
+
+  /** Fails the phases not yet reached. */
+  void fail(Throwable t) {
+    opened.completeExceptionally(t);
+    configured.completeExceptionally(t);
+    closed.completeExceptionally(t);
+    firstFrame.completeExceptionally(t);
+  }
+
+  void cancel() {
+    fail(new CancellationException(getTypeName() + " cancelled"));
+  }
+
+  private void checkOpen(boolean expectOpen) {
+    if (isOpen() != expectOpen) {
+      throw new IllegalStateException("Not available for a camera " + getTypeName());
+    }
+  }
+
+  private String getTypeName() {
+    switch (type) {
+      case TYPE_OPEN:
+        return "open";
+      case TYPE_SWITCH:
+        return "switch";
+      default:
+        return "close";
+    }
+  }
+
+  /** Lists each reached phase with its offset from the request in milliseconds. */
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder(getTypeName()).append(" camera");
+    if (cameraId != null) {
+      sb.append(' ').append(cameraId);
+    }
+    sb.append(':');
+    for (int phase = PHASE_STARTED; phase < PHASE_COUNT; phase++) {
+      long duration = getDurationNanos(PHASE_REQUESTED, phase);
+      if (duration >= 0) {
+        sb.append(String.format(Locale.US, " [%s +%.1fms]", PHASE_NAMES[phase], duration / 1e6));
+      }
+    }
+    if (isFailed()) {
+      sb.append(" [failed]");
+    }
+    return sb.toString();
+  }
+}
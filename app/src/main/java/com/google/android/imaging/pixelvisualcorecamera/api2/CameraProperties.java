@@ -0,0 +1,109 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Log;
+import android.util.Size;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the camera characteristics used by the app. Querying
+ * CameraCharacteristics is an IPC to the camera service, so each camera is queried once per
+ * process and the snapshot is shared.
+ */
+public final class CameraProperties {
+
+  private static final String TAG = "PvcCamProps";
+
+  private static final Map<String, CameraProperties> cache = new HashMap<>();
+
+  private final double maxDigitalZoom;
+  private final Size[] jpegOutputSizes;
+  private final boolean lensFacingFront;
+  private final int sensorOrientation;
+  private final CropRegionTable cropRegionTable;
+
+  /**
+   * Returns the properties of the camera, querying the camera service on first use.
+   *
+   * @throws CameraAccessException if the characteristics could not be read
+   */
+  public static CameraProperties get(CameraManager manager, String cameraId)
+      throws CameraAccessException {
+    synchronized (cache) {
+      CameraProperties properties = cache.get(cameraId);
+      if (properties == null) {
+        Log.d(TAG, "querying characteristics of camera " + cameraId);
+        properties = new CameraProperties(manager.getCameraCharacteristics(cameraId));
+        cache.put(cameraId, properties);
+      }
+      return properties;
+    }
+  }
+
+  private CameraProperties(CameraCharacteristics characteristics) throws CameraAccessException {
+    // Require a stream configuration map. Don't know why there wouldn't be one.
+    StreamConfigurationMap map = characteristics.get(
+        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    Rect activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+    Float maxZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+    Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+    Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    // These should never be missing on Pixel{1,2}.
+    if (map == null || activeArray == null || maxZoom == null
+        || facing == null || orientation == null) {
+      throw new CameraAccessException(CameraAccessException.CAMERA_ERROR);
+    }
+
+    maxDigitalZoom = maxZoom;
+    jpegOutputSizes = map.getOutputSizes(ImageFormat.JPEG);
+    lensFacingFront = (facing == CameraCharacteristics.LENS_FACING_FRONT);
+    sensorOrientation = orientation;
+    cropRegionTable = new CropRegionTable(
+        activeArray.width(), activeArray.height(), maxDigitalZoom);
+  }
+
+  /** Returns the precomputed crop regions for all supported zoom factors. */
+  CropRegionTable getCropRegionTable() {
+    return cropRegionTable;
+  }
+
+  /** Returns the maximum digital zoom as a scale factor. */
+  public double getMaxDigitalZoom() {
+    return maxDigitalZoom;
+  }
+
+  /** Returns a copy of the supported jpeg output sizes. */
+  public Size[] getJpegOutputSizes() {
+    return jpegOutputSizes.clone();
+  }
+
+  public boolean isLensFacingFront() {
+    return lensFacingFront;
+  }
+
+  public int getSensorOrientation() {
+    return sensorOrientation;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+/**
+ * Tracks whether captures may be started, and mirrors the state onto the capture buttons.
+ * May be set from any thread. The UI is only updated when the state changes, with a single
+ * main thread message covering all views.
+ */
+public final class CaptureButtonState {
+
+  private final View[] views;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable updateViews = this::updateViews;
+  private boolean enabled;
+  private boolean viewsEnabled;
+
+  /** The views are expected to start out disabled. */
+  CaptureButtonState(View... views) {
+    this.views = views;
+  }
+
+  synchronized boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Sets the state. Does nothing unless the state changes. */
+  synchronized void setEnabled(boolean enabled) {
+    if (this.enabled == enabled) {
+      return;
+    }
+    this.enabled = enabled;
+    // A pending update reads the latest state, so there is never more than one in the queue.
+    mainHandler.removeCallbacks(updateViews);
+    mainHandler.post(updateViews);
+  }
+
+  private void updateViews() {
+    boolean enable = isEnabled();
+    if (enable == viewsEnabled) {
+      return;
+    }
+    viewsEnabled = enable;
+    for (View view : views) {
+      view.setEnabled(enable);
+    }
+  }
+}
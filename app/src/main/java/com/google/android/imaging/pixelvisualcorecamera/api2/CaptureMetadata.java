@@ -0,0 +1,170 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureResult;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * The capture settings and 3A state of a still shot, taken from its TotalCaptureResult.
+ * Values missing from the result are reported as -1, or NaN for the focus distance.
+ */
+public final class CaptureMetadata {
+
+  /** The size of a record written by #writeTo, excluding the file name. */
+  static final int ENCODED_SIZE = 43;
+
+  private static final int FLAG_ZSL = 1;
+  private static final int FLAG_HDR_PLUS_ELIGIBLE = 1 << 1;
+  private static final int FLAG_CROP_REGION = 1 << 2;
+
+  private final long sensorTimestampNs;
+  private final long exposureTimeNs;
+  private final int sensitivity;
+  private final float focusDistance;
+  private final int afState;
+  private final int aeState;
+  private final Rect cropRegion;
+  private final boolean zsl;
+  private final boolean hdrPlusEligible;
+
+  private CaptureMetadata(long sensorTimestampNs, long exposureTimeNs, int sensitivity,
+      float focusDistance, int afState, int aeState, Rect cropRegion, boolean zsl,
+      boolean hdrPlusEligible) {
+    this.sensorTimestampNs = sensorTimestampNs;
+    this.exposureTimeNs = exposureTimeNs;
+    this.sensitivity = sensitivity;
+    this.focusDistance = focusDistance;
+    this.afState = afState;
+    this.aeState = aeState;
+    this.cropRegion = cropRegion;
+    this.zsl = zsl;
+    this.hdrPlusEligible = hdrPlusEligible;
+  }
+
+  /** Reads the values of a still capture result. Returns null if it has no sensor timestamp. */
+  static CaptureMetadata fromResult(CaptureResult result) {
+    Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+    if (timestamp == null) {
+      return null;
+    }
+    Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+    Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+    Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+    Rect cropRegion = result.get(CaptureResult.SCALER_CROP_REGION);
+    boolean zsl = Boolean.TRUE.equals(result.get(CaptureResult.CONTROL_ENABLE_ZSL));
+    return new CaptureMetadata(
+        timestamp,
+        (exposureTime != null) ? exposureTime : -1,
+        (sensitivity != null) ? sensitivity : -1,
+        (focusDistance != null) ? focusDistance : Float.NaN,
+        (afState != null) ? afState : -1,
+        (aeState != null) ? aeState : -1,
+        (cropRegion != null) ? new Rect(cropRegion) : null,
+        zsl,
+        zsl && isHdrPlusCompatible(result));
+  }
+
+  /** The conditions of the HDR+ comments in Camera2Controller, as reported by the result. */
+  private static boolean isHdrPlusCompatible(CaptureResult result) {
+    Integer flashMode = result.get(CaptureResult.FLASH_MODE);
+    Integer sceneMode = result.get(CaptureResult.CONTROL_SCENE_MODE);
+    return (flashMode == null || flashMode == CameraMetadata.FLASH_MODE_OFF)
+        && (sceneMode == null || sceneMode == CameraMetadata.CONTROL_SCENE_MODE_DISABLED
+            || sceneMode == CameraMetadata.CONTROL_SCENE_MODE_FACE_PRIORITY);
+  }
+
+  /** Returns the SENSOR_TIMESTAMP, which equals Image#getTimestamp of the shot. */
+  public long getSensorTimestampNanos() {
+    return sensorTimestampNs;
+  }
+
+  public long getExposureTimeNanos() {
+    return exposureTimeNs;
+  }
+
+  /** Returns the sensitivity as an ISO value. */
+  public int getSensitivity() {
+    return sensitivity;
+  }
+
+  /** Returns the focus distance in diopters. */
+  public float getFocusDistance() {
+    return focusDistance;
+  }
+
+  public int getAfState() {
+    return afState;
+  }
+
+  public int getAeState() {
+    return aeState;
+  }
+
+  /** Returns a copy of the crop region, or null if the result did not report it. */
+  public Rect getCropRegion() {
+    return (cropRegion != null) ? new Rect(cropRegion) : null;
+  }
+
+  /** Returns true if the frame was captured with CONTROL_ENABLE_ZSL. */
+  public boolean isZsl() {
+    return zsl;
+  }
+
+  /**
+   * Returns true if the shot met the conditions for HDR+ processing: ZSL, flash off, and a
+   * compatible scene mode. Whether HDR+ was actually applied is not reported by the camera.
+   */
+  public boolean isHdrPlusEligible() {
+    return hdrPlusEligible;
+  }
+
+  /** Writes the values in ENCODED_SIZE bytes, in the buffer's byte order. */
+  void writeTo(ByteBuffer buffer) {
+    int flags = (zsl ? FLAG_ZSL : 0)
+        | (hdrPlusEligible ? FLAG_HDR_PLUS_ELIGIBLE : 0)
+        | ((cropRegion != null) ? FLAG_CROP_REGION : 0);
+    buffer.putLong(sensorTimestampNs)
+        .putLong(exposureTimeNs)
+        .putInt(sensitivity)
+        .putFloat(focusDistance)
+        .put((byte) afState)
+        .put((byte) aeState)
+        .put((byte) flags);
+    if (cropRegion != null) {
+      buffer.putInt(cropRegion.left)
+          .putInt(cropRegion.top)
+          .putInt(cropRegion.right)
+          .putInt(cropRegion.bottom);
+    } else {
+      buffer.putLong(0).putLong(0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US,
+        "t=%d exp=%.2fms iso=%d focus=%.2fD af=%d ae=%d crop=%s zsl=%b hdr+=%b",
+        sensorTimestampNs, exposureTimeNs / 1e6, sensitivity, focusDistance, afState, aeState,
+        (cropRegion != null) ? cropRegion.toShortString() : "-", zsl, hdrPlusEligible);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends the CaptureMetadata of saved shots to a binary file, one fixed-size record per jpeg,
+ * so that shots can be analysed without decoding them. The file is opened with the first
+ * record. Thread safe; meant to be written from the saver thread.
+ *
+ * <p>The file starts with an 8 byte header: the magic "PVCM", a 16 bit version and the 16 bit
+ * record size. Each record holds the encoded CaptureMetadata, followed by the length of the jpeg
+ * file name and the name in ASCII, padded with zeros to MAX_NAME_LENGTH. Values are big endian.
+ */
+public final class CaptureMetadataLog {
+
+  private static final int MAGIC = 0x5056434D;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  static final int MAX_NAME_LENGTH = 48;
+  static final int RECORD_SIZE = CaptureMetadata.ENCODED_SIZE + 1 + MAX_NAME_LENGTH;
+
+  private final File file;
+  private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+  private FileOutputStream output;
+  private int recordCount;
+
+  public CaptureMetadataLog(File file) {
+    this.file = file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /** Appends the metadata of the jpeg with the given file name. Longer names are truncated. */
+  public synchronized void append(String jpegName, CaptureMetadata metadata) throws IOException {
+    if (output == null) {
+      open();
+    }
+    byte[] name = jpegName.getBytes(StandardCharsets.US_ASCII);
+    int nameLength = Math.min(name.length, MAX_NAME_LENGTH);
+    record.clear();
+    metadata.writeTo(record);
+    record.put((byte) nameLength).put(name, 0, nameLength);
+    while (record.hasRemaining()) {
+      record.put((byte) 0);
+    }
+    record.flip();
+    writeFully(output.getChannel(), record);
+    recordCount++;
+  }
+
+  /** Returns the number of records appended since the log was created. */
+  public synchronized int getRecordCount() {
+    return recordCount;
+  }
+
+  /** Closes the file. A later append reopens it. */
+  public synchronized void close() throws IOException {
+    if (output != null) {
+      output.close();
+      output = null;
+    }
+  }
+
+  private void open() throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    FileOutputStream stream = new FileOutputStream(file, /*append*/ true);
+    try {
+      if (stream.getChannel().size() == 0) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+            .putInt(MAGIC)
+            .putShort((short) VERSION)
+            .putShort((short) RECORD_SIZE);
+        header.flip();
+        writeFully(stream.getChannel(), header);
+      }
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+    output = stream;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
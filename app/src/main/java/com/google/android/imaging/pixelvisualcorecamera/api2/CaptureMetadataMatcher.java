@@ -0,0 +1,88 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Pairs still capture results with their images by sensor timestamp. Results and images may
+ * arrive in either order; whichever comes first waits for the other. Frames whose partner never
+ * arrives, e.g., failed captures, are evicted once more than maxUnmatched are waiting. Thread
+ * safe.
+ */
+final class CaptureMetadataMatcher {
+
+  private final int maxUnmatched;
+  private final Map<Long, CaptureMetadata> unmatchedResults = new LinkedHashMap<>();
+  private final Map<Long, CompletableFuture<CaptureMetadata>> unmatchedImages =
+      new LinkedHashMap<>();
+
+  CaptureMetadataMatcher(int maxUnmatched) {
+    this.maxUnmatched = maxUnmatched;
+  }
+
+  /** Adds the result of a still capture. */
+  synchronized void onResult(CaptureMetadata metadata) {
+    CompletableFuture<CaptureMetadata> image =
+        unmatchedImages.remove(metadata.getSensorTimestampNanos());
+    if (image != null) {
+      image.complete(metadata);
+      return;
+    }
+    unmatchedResults.put(metadata.getSensorTimestampNanos(), metadata);
+    evictEldest(unmatchedResults);
+  }
+
+  /**
+   * Returns the metadata of the image with the given timestamp. The future completes with
+   * null if the result is evicted or #clear is called before it arrives.
+   */
+  synchronized CompletableFuture<CaptureMetadata> onImage(long timestampNs) {
+    CaptureMetadata metadata = unmatchedResults.remove(timestampNs);
+    if (metadata != null) {
+      return CompletableFuture.completedFuture(metadata);
+    }
+    CompletableFuture<CaptureMetadata> future = new CompletableFuture<>();
+    unmatchedImages.put(timestampNs, future);
+    if (unmatchedImages.size() > maxUnmatched) {
+      Iterator<CompletableFuture<CaptureMetadata>> eldest = unmatchedImages.values().iterator();
+      eldest.next().complete(null);
+      eldest.remove();
+    }
+    return future;
+  }
+
+  /** Drops all waiting frames, e.g., when the session is closed. */
+  synchronized void clear() {
+    for (CompletableFuture<CaptureMetadata> image : unmatchedImages.values()) {
+      image.complete(null);
+    }
+    unmatchedImages.clear();
+    unmatchedResults.clear();
+  }
+
+  private void evictEldest(Map<Long, ?> map) {
+    if (map.size() > maxUnmatched) {
+      Iterator<?> eldest = map.values().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+  }
+}
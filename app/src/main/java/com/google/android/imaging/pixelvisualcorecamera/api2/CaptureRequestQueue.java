@@ -0,0 +1,136 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds capture requests that arrive while another capture is in flight. Requests are started
+ * in the order they were made. The queue has a fixed depth; optionally, a request identical to
+ * the most recently queued one is coalesced into it rather than queued again.
+ */
+public final class CaptureRequestQueue {
+
+  /** Shot type: a single HDR+ shot. */
+  public static final int SHOT_SINGLE = 0;
+
+  /** Shot type: back to back HDR+ and non-HDR shots. */
+  public static final int SHOT_DOUBLE = 1;
+
+  /** Shot type: a burst of HDR+ shots. */
+  public static final int SHOT_BURST = 2;
+
+  /** Reports the state of the queue. Called on the camera thread. */
+  public interface Listener {
+
+    /** Called when a request has been queued. */
+    void onCaptureQueued(int depth);
+
+    /** Called when a request leaves the queue to be captured. */
+    void onCaptureDequeued(int depth, long waitTimeNs);
+  }
+
+  /** A capture that has been requested but not yet started. */
+  static final class PendingCapture {
+    final int shotType;
+    final int frameCount;
+    final long requestTimeNs;
+
+    PendingCapture(int shotType, int frameCount, long requestTimeNs) {
+      this.shotType = shotType;
+      this.frameCount = frameCount;
+      this.requestTimeNs = requestTimeNs;
+    }
+  }
+
+  private final ArrayDeque<PendingCapture> queue = new ArrayDeque<>();
+  private final NanoClock clock;
+  private final int maxDepth;
+  private final boolean coalesce;
+  private int pendingFrameCount;
+  private Listener listener;
+
+  /**
+   * @param maxDepth the maximum number of captures waiting to be started
+   * @param coalesce if true, a request identical to the last queued request is dropped
+   */
+  CaptureRequestQueue(int maxDepth, boolean coalesce) {
+    this(maxDepth, coalesce, NanoClock.SYSTEM);
+  }
+
+  /** As above, measuring wait times with the given clock. */
+  CaptureRequestQueue(int maxDepth, boolean coalesce, NanoClock clock) {
+    if (maxDepth < 1) {
+      throw new IllegalArgumentException("queue depth must be at least 1");
+    }
+    this.clock = clock;
+    this.maxDepth = maxDepth;
+    this.coalesce = coalesce;
+  }
+
+  synchronized void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Queues a capture. Returns false if the request was not queued, either because the queue is
+   * full or because it was coalesced into the previous request.
+   */
+  synchronized boolean offer(int shotType, int frameCount, long requestTimeNs) {
+    PendingCapture last = queue.peekLast();
+    if (coalesce && last != null
+        && last.shotType == shotType && last.frameCount == frameCount) {
+      return false;
+    }
+    if (queue.size() >= maxDepth) {
+      return false;
+    }
+    queue.addLast(new PendingCapture(shotType, frameCount, requestTimeNs));
+    pendingFrameCount += frameCount;
+    if (listener != null) {
+      listener.onCaptureQueued(queue.size());
+    }
+    return true;
+  }
+
+  /** Removes and returns the oldest capture, or null if the queue is empty. */
+  synchronized PendingCapture poll() {
+    PendingCapture capture = queue.pollFirst();
+    if (capture != null) {
+      pendingFrameCount -= capture.frameCount;
+      if (listener != null) {
+        listener.onCaptureDequeued(queue.size(), clock.nanoTime() - capture.requestTimeNs);
+      }
+    }
+    return capture;
+  }
+
+  /** Returns the number of captures waiting to be started. */
+  public synchronized int getDepth() {
+    return queue.size();
+  }
+
+  /** Returns the total number of frames the waiting captures will produce. */
+  public synchronized int getPendingFrameCount() {
+    return pendingFrameCount;
+  }
+
+  synchronized void clear() {
+    queue.clear();
+    pendingFrameCount = 0;
+  }
+}
@@ -0,0 +1,194 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+/**
+ * The still capture sequence as a transition table: for each state, an ordered list of
+ * AF/AE state bitmasks and the transition taken on the first match. Evaluating a result does
+ * not allocate.
+ *
+ * <p>The class has no framework dependencies, so it can be driven by synthetic result streams
+ * on the JVM. AF and AE states are the int values of CaptureResult#CONTROL_AF_STATE and
+ * CaptureResult#CONTROL_AE_STATE, or RESULT_STATE_UNKNOWN if a result did not contain them.
+ * Side effects, i.e. submitting requests, are left to the {@link Actions}.
+ */
+final class CaptureStateMachine {
+
+  /** Performs the side effects of transitions. Called on the thread delivering results. */
+  interface Actions {
+
+    /** Start the AE precapture metering sequence. */
+    void runPrecaptureSequence();
+
+    /** Focus and exposure are ready, capture the still image. */
+    void captureStillPicture();
+
+    /** Called after every state change, including those made with #setState. */
+    void onStateChanged(int oldState, int newState);
+  }
+
+  /** Camera state: Showing camera preview. */
+  static final int STATE_PREVIEW = 0;
+
+  /** Camera state: Waiting for the focus to be locked. */
+  static final int STATE_WAITING_LOCK = 1;
+
+  /** Camera state: Waiting for the exposure to be precapture state. */
+  static final int STATE_WAITING_PRECAPTURE = 2;
+
+  /** Camera state: Waiting for the exposure state to be something other than precapture. */
+  static final int STATE_WAITING_NON_PRECAPTURE = 3;
+
+  /** Camera state: Picture was taken. */
+  static final int STATE_PICTURE_TAKEN = 4;
+
+  static final String[] STATE_NAMES = new String[]{
+      "Preview",
+      "Waiting Lock",
+      "Waiting Precapture Start",
+      "Waiting Precapture Finish",
+      "Picture Taken"
+  };
+
+  /** Passed in place of an AF or AE state that was missing from a result. */
+  static final int RESULT_STATE_UNKNOWN = -1;
+
+  // Values of CaptureResult.CONTROL_AF_STATE_*. Fixed by the camera2 API.
+  static final int AF_STATE_INACTIVE = 0;
+  static final int AF_STATE_PASSIVE_SCAN = 1;
+  static final int AF_STATE_PASSIVE_FOCUSED = 2;
+  static final int AF_STATE_ACTIVE_SCAN = 3;
+  static final int AF_STATE_FOCUSED_LOCKED = 4;
+  static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+  static final int AF_STATE_PASSIVE_UNFOCUSED = 6;
+
+  // Values of CaptureResult.CONTROL_AE_STATE_*. Fixed by the camera2 API.
+  static final int AE_STATE_INACTIVE = 0;
+  static final int AE_STATE_SEARCHING = 1;
+  static final int AE_STATE_CONVERGED = 2;
+  static final int AE_STATE_LOCKED = 3;
+  static final int AE_STATE_FLASH_REQUIRED = 4;
+  static final int AE_STATE_PRECAPTURE = 5;
+
+  // Result states are mapped to bits; the unknown state has a bit of its own.
+  private static final int UNKNOWN_BIT = 1 << 31;
+  private static final int ANY = ~0;
+
+  private static final int AF_UNKNOWN = UNKNOWN_BIT;
+  private static final int AF_LOCKED =
+      bit(AF_STATE_FOCUSED_LOCKED) | bit(AF_STATE_NOT_FOCUSED_LOCKED);
+
+  private static final int AE_CONVERGED_OR_UNKNOWN = bit(AE_STATE_CONVERGED) | UNKNOWN_BIT;
+  private static final int AE_PRECAPTURE_STARTED_OR_UNKNOWN =
+      bit(AE_STATE_PRECAPTURE) | bit(AE_STATE_FLASH_REQUIRED) | UNKNOWN_BIT;
+  private static final int AE_NOT_PRECAPTURE = ~bit(AE_STATE_PRECAPTURE);
+
+  private static final int ACTION_NONE = 0;
+  private static final int ACTION_PRECAPTURE = 1;
+  private static final int ACTION_CAPTURE = 2;
+
+  // Columns of a transition row.
+  private static final int AF_MASK = 0;
+  private static final int AE_MASK = 1;
+  private static final int NEXT_STATE = 2;
+  private static final int ACTION = 3;
+
+  /** Transitions, indexed by state. Rows are evaluated in order, the first match is taken. */
+  private static final int[][][] TRANSITIONS = new int[][][]{
+      // STATE_PREVIEW: results are not inspected.
+      {},
+      // STATE_WAITING_LOCK
+      {
+          // No AF state reported: capture right away.
+          {AF_UNKNOWN, ANY, STATE_PICTURE_TAKEN, ACTION_CAPTURE},
+          {AF_LOCKED, AE_CONVERGED_OR_UNKNOWN, STATE_PICTURE_TAKEN, ACTION_CAPTURE},
+          {AF_LOCKED, ANY, STATE_WAITING_PRECAPTURE, ACTION_PRECAPTURE},
+      },
+      // STATE_WAITING_PRECAPTURE
+      {
+          {ANY, AE_PRECAPTURE_STARTED_OR_UNKNOWN, STATE_WAITING_NON_PRECAPTURE, ACTION_NONE},
+      },
+      // STATE_WAITING_NON_PRECAPTURE
+      {
+          {ANY, AE_NOT_PRECAPTURE, STATE_PICTURE_TAKEN, ACTION_CAPTURE},
+      },
+      // STATE_PICTURE_TAKEN: waiting for the still capture to complete.
+      {},
+  };
+
+  private final Actions actions;
+  private int state = STATE_PREVIEW;
+
+  CaptureStateMachine(Actions actions) {
+    this.actions = actions;
+  }
+
+  int getState() {
+    return state;
+  }
+
+  /** Returns true if results need to be passed to #onResult in the current state. */
+  boolean isWaitingForResult() {
+    return TRANSITIONS[state].length > 0;
+  }
+
+  /** Moves to the state directly, e.g., when a capture sequence is started or finished. */
+  void setState(int newState) {
+    if (newState < STATE_PREVIEW || newState > STATE_PICTURE_TAKEN) {
+      throw new IllegalArgumentException("Invalid state: " + newState);
+    }
+    int oldState = state;
+    state = newState;
+    if (oldState != newState) {
+      actions.onStateChanged(oldState, newState);
+    }
+  }
+
+  /**
+   * Evaluates the AF and AE states of a capture result, taking at most one transition.
+   * Pass RESULT_STATE_UNKNOWN for states missing from the result.
+   */
+  void onResult(int afState, int aeState) {
+    int afBit = resultBit(afState);
+    int aeBit = resultBit(aeState);
+    int[][] transitions = TRANSITIONS[state];
+    for (int[] transition : transitions) {
+      if ((transition[AF_MASK] & afBit) != 0 && (transition[AE_MASK] & aeBit) != 0) {
+        setState(transition[NEXT_STATE]);
+        switch (transition[ACTION]) {
+          case ACTION_PRECAPTURE:
+            actions.runPrecaptureSequence();
+            break;
+          case ACTION_CAPTURE:
+            actions.captureStillPicture();
+            break;
+          default:
+            break;
+        }
+        return;
+      }
+    }
+  }
+
+  private static int resultBit(int resultState) {
+    return (resultState >= 0 && resultState < 31) ? bit(resultState) : UNKNOWN_BIT;
+  }
+
+  private static int bit(int resultState) {
+    return 1 << resultState;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import android.graphics.Rect;
+
+/**
+ * Precomputed SCALER_CROP_REGION rectangles for zoom factors from 1.0 to the maximum digital
+ * zoom, in steps of ZOOM_STEP. Looking up a region does not allocate. The rectangles are
+ * shared and must not be modified.
+ */
+final class CropRegionTable {
+
+  /** The zoom resolution of the table. */
+  static final double ZOOM_STEP = 0.01;
+
+  private static final double MIN_ZOOM = 1.0;
+
+  private final Rect[] regions;
+
+  CropRegionTable(int activeArrayWidth, int activeArrayHeight, double maxZoom) {
+    int count = (int) Math.round((maxZoom - MIN_ZOOM) / ZOOM_STEP) + 1;
+    regions = new Rect[Math.max(count, 1)];
+    int[] region = new int[4];
+    for (int i = 0; i < regions.length; i++) {
+      double zoom = Math.min(MIN_ZOOM + i * ZOOM_STEP, maxZoom);
+      computeCropRegion(activeArrayWidth, activeArrayHeight, zoom, region);
+      regions[i] = new Rect(region[0], region[1], region[2], region[3]);
+    }
+  }
+
+  /** Returns the crop region for the zoom factor, rounded to the nearest step. */
+  Rect get(double zoom) {
+    int i = (int) Math.round((zoom - MIN_ZOOM) / ZOOM_STEP);
+    return regions[Math.min(Math.max(i, 0), regions.length - 1)];
+  }
+
+  /**
+   * Computes a crop region centered on the active array.
+   *
+   * @param out receives the left, top, right and bottom edges
+   */
+  static void computeCropRegion(
+      int activeArrayWidth, int activeArrayHeight, double zoom, int[] out) {
+    int width = (int) Math.floor(activeArrayWidth / zoom);
+    int left = (activeArrayWidth - width) / 2;
+    int height = (int) Math.floor(activeArrayHeight / zoom);
+    int top = (activeArrayHeight - height) / 2;
+    out[0] = left;
+    out[1] = top;
+    out[2] = left + width;
+    out[3] = top + height;
+  }
+}
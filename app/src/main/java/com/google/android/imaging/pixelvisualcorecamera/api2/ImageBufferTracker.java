@@ -0,0 +1,103 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+/**
+ * Accounts for the buffers of a jpeg ImageReader, one tracker per reader. Each buffer is free, reserved by a still
+ * frame the camera is producing, or held by an acquired Image. When a frame is submitted with
+ * no free buffer, the camera has to wait for an image to be closed before it can output the
+ * frame; such frames are counted as stalls.
+ *
+ * <p>Updated on the camera thread, may be read from any thread.
+ */
+public final class ImageBufferTracker {
+
+  private final int maxImages;
+  private int inFlight;
+  private int acquired;
+  private long stallCount;
+
+  ImageBufferTracker(int maxImages) {
+    this.maxImages = maxImages;
+  }
+
+  /** Reserves buffers for still frames. Returns the number of frames that will stall. */
+  synchronized int onFramesSubmitted(int frameCount) {
+    int stalls = 0;
+    for (int i = 0; i < frameCount; i++) {
+      if (inFlight + acquired >= maxImages) {
+        stalls++;
+      }
+      inFlight++;
+    }
+    stallCount += stalls;
+    return stalls;
+  }
+
+  /** A still frame failed and will not produce an image. */
+  synchronized void onFrameFailed() {
+    if (inFlight > 0) {
+      inFlight--;
+    }
+  }
+
+  /** An image was acquired from the reader. */
+  synchronized void onImageAcquired() {
+    if (inFlight > 0) {
+      inFlight--;
+    }
+    acquired++;
+  }
+
+  /** An acquired image was closed. */
+  synchronized void onImageReleased() {
+    if (acquired > 0) {
+      acquired--;
+    }
+  }
+
+  /** Returns the maxImages of the reader. */
+  public int getMaxImages() {
+    return maxImages;
+  }
+
+  /** Returns the number of images acquired and not yet closed. */
+  public synchronized int getAcquiredCount() {
+    return acquired;
+  }
+
+  /** Returns the number of buffers reserved by frames whose image has not been acquired yet. */
+  public synchronized int getInFlightCount() {
+    return inFlight;
+  }
+
+  /** Returns the number of buffers available to the next frame. */
+  public synchronized int getFreeCount() {
+    return Math.max(maxImages - inFlight - acquired, 0);
+  }
+
+  /** Returns the number of frames submitted while no buffer was free. */
+  public synchronized long getStallCount() {
+    return stallCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "acquired " + acquired + ", in flight " + inFlight + ", free " + getFreeCount()
+        + " of " + maxImages + ", stalls " + stallCount;
+  }
+}
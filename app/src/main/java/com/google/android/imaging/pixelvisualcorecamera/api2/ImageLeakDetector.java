@@ -0,0 +1,114 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import android.os.Handler;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the images owned by the client and flags each image that is held past a deadline.
+ * A flagged image is not closed, the client may still be writing it; it is reported once, and
+ * stays tracked until it is released.
+ */
+final class ImageLeakDetector {
+
+  private static final String TAG = "PvcCamLeaks";
+
+  private final List<OwnedImage> outstanding = new ArrayList<>();
+  private final Runnable check = this::check;
+  private final long deadlineNs;
+  private Handler handler;
+  private boolean checkScheduled;
+
+  ImageLeakDetector(long deadline, TimeUnit unit) {
+    if (deadline <= 0) {
+      throw new IllegalArgumentException("deadline must be positive");
+    }
+    deadlineNs = unit.toNanos(deadline);
+  }
+
+  /** Sets the handler on which deadlines are checked; null stops checking. */
+  synchronized void setHandler(Handler handler) {
+    if (this.handler != null) {
+      this.handler.removeCallbacks(check);
+    }
+    this.handler = handler;
+    checkScheduled = false;
+    scheduleCheck();
+  }
+
+  synchronized void track(OwnedImage image) {
+    outstanding.add(image);
+    scheduleCheck();
+  }
+
+  /** Stops tracking the image. Returns the number of images still outstanding. */
+  synchronized int untrack(OwnedImage image) {
+    outstanding.remove(image);
+    return outstanding.size();
+  }
+
+  /** Returns the number of images owned by the client and not yet released. */
+  synchronized int getOutstandingCount() {
+    return outstanding.size();
+  }
+
+  private void scheduleCheck() {
+    long delayNs = getNextDeadlineNs(System.nanoTime());
+    if (handler != null && !checkScheduled && delayNs >= 0) {
+      checkScheduled = true;
+      handler.postDelayed(check, TimeUnit.NANOSECONDS.toMillis(delayNs) + 1);
+    }
+  }
+
+  /** Returns the time until the earliest deadline of an unreported image, or -1 if none. */
+  private long getNextDeadlineNs(long nowNs) {
+    long next = -1;
+    for (OwnedImage image : outstanding) {
+      if (!image.leakReported) {
+        long remainingNs = Math.max(image.getAcquireTimeNanos() + deadlineNs - nowNs, 0);
+        next = (next < 0) ? remainingNs : Math.min(next, remainingNs);
+      }
+    }
+    return next;
+  }
+
+  private void check() {
+    long nowNs = System.nanoTime();
+    int leaked = 0;
+    int outstandingCount;
+    synchronized (this) {
+      checkScheduled = false;
+      for (OwnedImage image : outstanding) {
+        long heldNs = nowNs - image.getAcquireTimeNanos();
+        if (!image.leakReported && heldNs >= deadlineNs) {
+          image.leakReported = true;
+          leaked++;
+        }
+      }
+      outstandingCount = outstanding.size();
+      scheduleCheck();
+    }
+    if (leaked > 0) {
+      Log.w(TAG, leaked + " image(s) held for more than "
+          + TimeUnit.NANOSECONDS.toMillis(deadlineNs) + "ms, outstanding: " + outstandingCount);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import android.media.Image;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An Image handed off to a client, which owns it until #release is called. The image holds one
+ * of the ImageReader's buffers, so the camera can only produce so many frames before images
+ * are released. Release may be called on any thread, once the image is no longer accessed.
+ */
+public final class OwnedImage implements AutoCloseable {
+
+  /** Notified once after the image has been closed. */
+  interface ReleaseListener {
+    void onImageReleased(OwnedImage image);
+  }
+
+  private final Image image;
+  private final long acquireTimeNs;
+  private final CompletableFuture<CaptureMetadata> metadata;
+  private final ReleaseListener releaseListener;
+  private boolean released;
+
+  /** Accounts for the buffers of the reader the image was acquired from. */
+  final ImageBufferTracker imageBuffers;
+
+  /** Set by the leak detector once the image has been reported. */
+  boolean leakReported;
+
+  OwnedImage(Image image, ImageBufferTracker imageBuffers, long acquireTimeNs,
+      CompletableFuture<CaptureMetadata> metadata, ReleaseListener releaseListener) {
+    this.image = image;
+    this.imageBuffers = imageBuffers;
+    this.acquireTimeNs = acquireTimeNs;
+    this.metadata = metadata;
+    this.releaseListener = releaseListener;
+  }
+
+  /**
+   * Returns the image. Do not close it, call #release instead.
+   *
+   * @throws IllegalStateException if the image was released
+   */
+  public synchronized Image getImage() {
+    if (released) {
+      throw new IllegalStateException("image was released");
+    }
+    return image;
+  }
+
+  /** Returns the System#nanoTime at which the image was acquired from the reader. */
+  public long getAcquireTimeNanos() {
+    return acquireTimeNs;
+  }
+
+  /**
+   * Returns the metadata of the capture result with the image's timestamp. The result may
+   * arrive after the image; the future completes with null if it never does. Remains valid
+   * after the image is released.
+   */
+  public CompletableFuture<CaptureMetadata> getMetadata() {
+    return metadata;
+  }
+
+  /** Closes the image and returns its buffer to the reader. Does nothing if already released. */
+  public void release() {
+    synchronized (this) {
+      if (released) {
+        return;
+      }
+      released = true;
+    }
+    image.close();
+    releaseListener.onImageReleased(this);
+  }
+
+  /** Same as #release, for use with try-with-resources. */
+  @Override
+  public void close() {
+    release();
+  }
+}
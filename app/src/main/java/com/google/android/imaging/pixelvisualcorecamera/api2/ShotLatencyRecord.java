@@ -0,0 +1,131 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The timestamps of each stage of a single still capture. Timestamps are taken from the
+ * recorder's clock, System#nanoTime in the app. Stages that were not reached, e.g., precapture
+ * when AE was already converged, have no timestamp.
+ */
+public final class ShotLatencyRecord {
+
+  /** Stage: takePicture() was called. */
+  public static final int STAGE_TAKE_PICTURE = 0;
+
+  /** Stage: the AF trigger request was submitted. */
+  public static final int STAGE_LOCK_FOCUS_SUBMITTED = 1;
+
+  /** Stage: the AF lock was observed in a capture result. */
+  public static final int STAGE_AF_LOCKED = 2;
+
+  /** Stage: the AE precapture sequence was observed to start. */
+  public static final int STAGE_PRECAPTURE_STARTED = 3;
+
+  /** Stage: the AE precapture sequence was observed to finish. */
+  public static final int STAGE_PRECAPTURE_FINISHED = 4;
+
+  /** Stage: the repeating preview request was stopped. */
+  public static final int STAGE_STOP_REPEATING = 5;
+
+  /** Stage: the capture session reported onReady. */
+  public static final int STAGE_SESSION_READY = 6;
+
+  /** Stage: the still capture request was submitted. */
+  public static final int STAGE_STILL_CAPTURE_SUBMITTED = 7;
+
+  /** Stage: onCaptureCompleted was received for the still capture request. */
+  public static final int STAGE_CAPTURE_COMPLETED = 8;
+
+  /** Stage: the jpeg was available from the ImageReader. */
+  public static final int STAGE_IMAGE_AVAILABLE = 9;
+
+  /** Stage: the jpeg was written to disk. */
+  public static final int STAGE_FILE_WRITTEN = 10;
+
+  /** Stage: the repeating preview request was restarted. */
+  public static final int STAGE_PREVIEW_RESUMED = 11;
+
+  static final int STAGE_COUNT = 12;
+
+  private static final String[] STAGE_NAMES = new String[]{
+      "Take picture",
+      "Lock focus submitted",
+      "AF locked",
+      "Precapture started",
+      "Precapture finished",
+      "Stop repeating",
+      "Session ready",
+      "Still capture submitted",
+      "Capture completed",
+      "Image available",
+      "File written",
+      "Preview resumed"
+  };
+
+  private static final long NOT_REACHED = 0;
+
+  private final int shotId;
+  private final long[] timestampsNs;
+
+  ShotLatencyRecord(int shotId, long[] source, int offset) {
+    this.shotId = shotId;
+    this.timestampsNs = Arrays.copyOfRange(source, offset, offset + STAGE_COUNT);
+  }
+
+  /** Returns the sequence number of the shot within the controller's lifetime. */
+  public int getShotId() {
+    return shotId;
+  }
+
+  /** Returns true if the capture passed through the given stage. */
+  public boolean hasStage(int stage) {
+    return timestampsNs[stage] != NOT_REACHED;
+  }
+
+  /** Returns the timestamp of the stage in nanoseconds, or 0 if the stage was not reached. */
+  public long getTimestampNanos(int stage) {
+    return timestampsNs[stage];
+  }
+
+  /** Returns the time between two stages in nanoseconds, or -1 if either was not reached. */
+  public long getDurationNanos(int fromStage, int toStage) {
+    if (!hasStage(fromStage) || !hasStage(toStage)) {
+      return -1;
+    }
+    return timestampsNs[toStage] - timestampsNs[fromStage];
+  }
+
+  public static String getStageName(int stage) {
+    return STAGE_NAMES[stage];
+  }
+
+  /** Lists each reached stage with its offset from takePicture() in milliseconds. */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("shot ").append(shotId).append(':');
+    for (int stage = 0; stage < STAGE_COUNT; stage++) {
+      long duration = getDurationNanos(STAGE_TAKE_PICTURE, stage);
+      if (duration >= 0) {
+        sb.append(String.format(Locale.US, " [%s +%.1fms]", STAGE_NAMES[stage], duration / 1e6));
+      }
+    }
+    return sb.toString();
+  }
+}
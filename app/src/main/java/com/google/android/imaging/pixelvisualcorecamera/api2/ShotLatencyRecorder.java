@@ -0,0 +1,308 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_COUNT;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_FILE_WRITTEN;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_IMAGE_AVAILABLE;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_TAKE_PICTURE;
+
+import java.util.Arrays;
+
+/**
+ * Collects per-stage timestamps of still captures and publishes one {@link ShotLatencyRecord}
+ * per shot. Timestamps are stored in preallocated slots, so marking a stage does not allocate.
+ *
+ * <p>A shot is published once both its capture sequence has ended and all of its images have
+ * been written. Images are matched to shots in submission order, as the camera delivers them.
+ * For bursts, the image stages hold the timestamp of the last image. Shots that cannot be
+ * published, because an image was not saved or the shot was evicted, are reported to
+ * Listener#onShotDropped and counted, so that the published latencies are not silently biased.
+ */
+public final class ShotLatencyRecorder {
+
+  /** Receives a record for each completed shot. */
+  public interface Listener {
+
+    /** Called on the thread that completed the shot, either the camera or the saver thread. */
+    void onShotRecorded(ShotLatencyRecord record);
+
+    /** Called instead of #onShotRecorded for a shot that has no complete record. */
+    default void onShotDropped(int shotId, String reason) {}
+  }
+
+  /**
+   * The number of shots that may be tracked at once. Covers the capture queue, the shot in
+   * flight and a full save queue of single shots, with room to spare. Older shots are evicted.
+   */
+  private static final int MAX_SHOTS_IN_FLIGHT = 32;
+
+  /** Returned by #maybeCreateRecord for a shot that completed without a record. */
+  private static final ShotLatencyRecord DROPPED =
+      new ShotLatencyRecord(0, new long[STAGE_COUNT], 0);
+
+  /** The number of images that may be awaited at once, across all shots in flight. */
+  private static final int MAX_IMAGES_IN_FLIGHT = 32;
+
+  private final long[] timestampsNs = new long[MAX_SHOTS_IN_FLIGHT * STAGE_COUNT];
+  private final int[] slotShotIds = new int[MAX_SHOTS_IN_FLIGHT];
+  private final boolean[] slotCaptureEnded = new boolean[MAX_SHOTS_IN_FLIGHT];
+  private final int[] slotPendingWrites = new int[MAX_SHOTS_IN_FLIGHT];
+  private final boolean[] slotSaveFailed = new boolean[MAX_SHOTS_IN_FLIGHT];
+
+  /** Shots whose still request was submitted, waiting for their image. */
+  private final IntFifo awaitingImage = new IntFifo(MAX_IMAGES_IN_FLIGHT);
+
+  /** Shots whose image was delivered, waiting for the file to be written. */
+  private final IntFifo awaitingWrite = new IntFifo(MAX_IMAGES_IN_FLIGHT);
+
+  private final NanoClock clock;
+  private volatile Listener listener;
+  private int nextShotId = 1;
+  private int droppedShotCount;
+
+  ShotLatencyRecorder() {
+    this(NanoClock.SYSTEM);
+  }
+
+  ShotLatencyRecorder(NanoClock clock) {
+    this.clock = clock;
+  }
+
+  void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Starts tracking a new shot. Returns the id of the shot.
+   *
+   * @param takePictureTimeNs the clock time at which the shot was requested
+   */
+  int beginShot(long takePictureTimeNs) {
+    int shotId;
+    int evictedShotId;
+    synchronized (this) {
+      shotId = nextShotId++;
+      int slot = slotOf(shotId);
+      evictedShotId = slotShotIds[slot];
+      if (evictedShotId != 0) {
+        droppedShotCount++;
+      }
+      slotShotIds[slot] = shotId;
+      slotCaptureEnded[slot] = false;
+      slotPendingWrites[slot] = 0;
+      slotSaveFailed[slot] = false;
+      Arrays.fill(timestampsNs, slot * STAGE_COUNT, (slot + 1) * STAGE_COUNT, 0);
+      timestampsNs[slot * STAGE_COUNT + STAGE_TAKE_PICTURE] = takePictureTimeNs;
+    }
+    if (evictedShotId != 0) {
+      reportDropped(evictedShotId, "evicted, too many shots in flight");
+    }
+    return shotId;
+  }
+
+  /** Returns the number of shots reported to Listener#onShotDropped. */
+  synchronized int getDroppedShotCount() {
+    return droppedShotCount;
+  }
+
+  /** Marks a stage of the given shot. Ignored if the shot is no longer tracked. */
+  synchronized void mark(int shotId, int stage) {
+    int slot = slotOf(shotId);
+    if (slotShotIds[slot] == shotId) {
+      timestampsNs[slot * STAGE_COUNT + stage] = clock.nanoTime();
+    }
+  }
+
+  /** Records that a still request of the shot was submitted, and an image will follow. */
+  synchronized void expectImage(int shotId) {
+    int slot = slotOf(shotId);
+    if (slotShotIds[slot] == shotId) {
+      slotPendingWrites[slot]++;
+    }
+    awaitingImage.push(shotId);
+  }
+
+  /**
+   * Records that a still request of the shot failed, so the image expected for it will not
+   * follow. The shot is dropped once complete.
+   */
+  void markImageFailed(int shotId) {
+    ShotLatencyRecord record;
+    synchronized (this) {
+      if (!awaitingImage.removeLast(shotId)) {
+        return;
+      }
+      int slot = slotOf(shotId);
+      if (slotShotIds[slot] != shotId) {
+        return;
+      }
+      slotSaveFailed[slot] = true;
+      slotPendingWrites[slot]--;
+      record = maybeCreateRecord(shotId);
+    }
+    publish(shotId, record);
+  }
+
+  /** Marks STAGE_IMAGE_AVAILABLE on the oldest shot still waiting for its image. */
+  synchronized void markImageAvailable() {
+    if (awaitingImage.isEmpty()) {
+      return;
+    }
+    int shotId = awaitingImage.pop();
+    mark(shotId, STAGE_IMAGE_AVAILABLE);
+    awaitingWrite.push(shotId);
+  }
+
+  /** Marks STAGE_FILE_WRITTEN on the oldest shot waiting for its image to be saved. */
+  void markFileWritten() {
+    onImageSaved(/*success*/ true);
+  }
+
+  /**
+   * Takes the oldest shot waiting for its image to be saved off the queue, without marking
+   * STAGE_FILE_WRITTEN. The shot is dropped once complete.
+   */
+  void markFileFailed() {
+    onImageSaved(/*success*/ false);
+  }
+
+  private void onImageSaved(boolean success) {
+    int shotId;
+    ShotLatencyRecord record;
+    synchronized (this) {
+      if (awaitingWrite.isEmpty()) {
+        return;
+      }
+      shotId = awaitingWrite.pop();
+      int slot = slotOf(shotId);
+      if (slotShotIds[slot] != shotId) {
+        return;
+      }
+      if (success) {
+        mark(shotId, STAGE_FILE_WRITTEN);
+      } else {
+        slotSaveFailed[slot] = true;
+      }
+      slotPendingWrites[slot]--;
+      record = maybeCreateRecord(shotId);
+    }
+    publish(shotId, record);
+  }
+
+  /** Records that the capture sequence of the shot has ended, e.g., the preview resumed. */
+  void endCapture(int shotId) {
+    ShotLatencyRecord record;
+    synchronized (this) {
+      int slot = slotOf(shotId);
+      if (slotShotIds[slot] != shotId) {
+        return;
+      }
+      slotCaptureEnded[slot] = true;
+      record = maybeCreateRecord(shotId);
+    }
+    publish(shotId, record);
+  }
+
+  /**
+   * Returns the record of the shot if it is complete, releasing its slot. A complete shot
+   * without a record, e.g., one whose image was not saved, is released, counted and DROPPED
+   * is returned. Returns null if the shot is incomplete.
+   */
+  private ShotLatencyRecord maybeCreateRecord(int shotId) {
+    int slot = slotOf(shotId);
+    if (slotShotIds[slot] != shotId || !slotCaptureEnded[slot]
+        || slotPendingWrites[slot] > 0) {
+      return null;
+    }
+    // Release the slot, the shot is complete.
+    slotShotIds[slot] = 0;
+    if (slotSaveFailed[slot] || timestampsNs[slot * STAGE_COUNT + STAGE_FILE_WRITTEN] == 0) {
+      droppedShotCount++;
+      return DROPPED;
+    }
+    return new ShotLatencyRecord(shotId, timestampsNs, slot * STAGE_COUNT);
+  }
+
+  /** Publishes the record of a completed shot, or reports it if it was dropped. */
+  private void publish(int shotId, ShotLatencyRecord record) {
+    Listener l = listener;
+    if (l == null || record == null) {
+      return;
+    }
+    if (record == DROPPED) {
+      l.onShotDropped(shotId, "no image saved");
+    } else {
+      l.onShotRecorded(record);
+    }
+  }
+
+  private void reportDropped(int shotId, String reason) {
+    Listener l = listener;
+    if (l != null) {
+      l.onShotDropped(shotId, reason);
+    }
+  }
+
+  private static int slotOf(int shotId) {
+    return shotId % MAX_SHOTS_IN_FLIGHT;
+  }
+
+  /** A fixed size queue of ints. The oldest entry is overwritten when full. */
+  private static final class IntFifo {
+    private final int[] values;
+    private int head;
+    private int size;
+
+    IntFifo(int capacity) {
+      values = new int[capacity];
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void push(int value) {
+      if (size == values.length) {
+        pop();
+      }
+      values[(head + size) % values.length] = value;
+      size++;
+    }
+
+    int pop() {
+      int value = values[head];
+      head = (head + 1) % values.length;
+      size--;
+      return value;
+    }
+
+    /** Removes the newest entry equal to the value. Returns false if there is none. */
+    boolean removeLast(int value) {
+      for (int i = size - 1; i >= 0; i--) {
+        if (values[(head + i) % values.length] == value) {
+          for (int j = i; j < size - 1; j++) {
+            values[(head + j) % values.length] = values[(head + j + 1) % values.length];
+          }
+          size--;
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
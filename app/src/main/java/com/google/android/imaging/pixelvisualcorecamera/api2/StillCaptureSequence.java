@@ -0,0 +1,310 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_AF_LOCKED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_CAPTURE_COMPLETED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_LOCK_FOCUS_SUBMITTED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_PRECAPTURE_FINISHED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_PRECAPTURE_STARTED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_PREVIEW_RESUMED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_SESSION_READY;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_STILL_CAPTURE_SUBMITTED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_STOP_REPEATING;
+
+/**
+ * The still capture sequence of Camera2Controller: takes queued captures one at a time, locks
+ * focus, runs the precapture sequence if AE asks for it, stops the preview, submits the still
+ * requests once the session is ready, and resumes the preview when every frame has completed
+ * or failed. Double shots take a second, non-HDR+ still in a sequence of its own.
+ *
+ * <p>The class has no framework dependencies. Requests are issued through a {@link Session},
+ * implemented with a CameraCaptureSession by the controller and with a virtual camera by the
+ * simulator. All methods must be called on the camera thread, except
+ * #getUnsubmittedFrameCount.
+ */
+final class StillCaptureSequence {
+
+  /** Issues the requests of the sequence. Failures are handled, and logged, by the session. */
+  interface Session {
+
+    /** Submits a single preview request with an AF trigger. */
+    void triggerAutoFocus();
+
+    /** Submits a single preview request with an AE precapture trigger. */
+    void triggerPrecapture();
+
+    /** Stops the repeating preview request. #onSessionReady follows once the camera is idle. */
+    void stopRepeating();
+
+    /**
+     * Submits the still requests. Each frame must be reported with #onStillFrameCompleted or
+     * #onStillFrameFailed. Returns false if the requests could not be submitted.
+     *
+     * @param frameCount the number of frames, captured back to back
+     * @param zsl the value of CONTROL_ENABLE_ZSL, true for HDR+ shots
+     */
+    boolean captureStill(int frameCount, boolean zsl);
+
+    /** Submits a single preview request that cancels AF and resumes the repeating request. */
+    void resumePreview();
+
+    /** Called after every state change of the sequence. */
+    default void onStateChanged(int oldState, int newState) {}
+  }
+
+  private final Session session;
+  private final CaptureRequestQueue captureQueue;
+  private final ShotLatencyRecorder shotLatencyRecorder;
+  private final NanoClock clock;
+  private final CaptureStateMachine stateMachine;
+
+  /** True from the start of a capture sequence until the preview has resumed. */
+  private boolean captureInProgress;
+  private boolean stillCapturePending;
+  private boolean doubleShotPending;
+  private boolean nonHdrPlusShotPending;
+  private int burstFramesPending;
+
+  /** Frames of the submitted still requests that have not completed or failed yet. */
+  private int stillFramesPending;
+
+  /** The id of the shot whose capture sequence is in progress. */
+  private int shotId;
+
+  /** Frames of the capture in progress whose still request has not been submitted yet. */
+  private volatile int unsubmittedFrameCount;
+
+  StillCaptureSequence(Session session, CaptureRequestQueue captureQueue,
+      ShotLatencyRecorder shotLatencyRecorder, NanoClock clock) {
+    this.session = session;
+    this.captureQueue = captureQueue;
+    this.shotLatencyRecorder = shotLatencyRecorder;
+    this.clock = clock;
+    stateMachine = new CaptureStateMachine(new CaptureStateMachine.Actions() {
+
+      @Override
+      public void runPrecaptureSequence() {
+        session.triggerPrecapture();
+      }
+
+      @Override
+      public void captureStillPicture() {
+        StillCaptureSequence.this.captureStillPicture();
+      }
+
+      @Override
+      public void onStateChanged(int oldState, int newState) {
+        markStage(oldState, newState);
+        session.onStateChanged(oldState, newState);
+      }
+    });
+  }
+
+  /**
+   * Queues a capture and starts it if no other capture is in progress. Returns false if the
+   * queue rejected the request.
+   *
+   * @param requestTimeNs the clock time at which the capture was requested
+   */
+  boolean requestCapture(int shotType, int frameCount, long requestTimeNs) {
+    if (!captureQueue.offer(shotType, frameCount, requestTimeNs)) {
+      return false;
+    }
+    if (!captureInProgress) {
+      startNextCapture();
+    }
+    return true;
+  }
+
+  /** Drops queued captures and forgets the capture in progress, e.g., when the camera closed. */
+  void reset() {
+    captureQueue.clear();
+    captureInProgress = false;
+    stillCapturePending = false;
+    doubleShotPending = false;
+    nonHdrPlusShotPending = false;
+    burstFramesPending = 0;
+    stillFramesPending = 0;
+    unsubmittedFrameCount = 0;
+    stateMachine.setState(CaptureStateMachine.STATE_PREVIEW);
+  }
+
+  /** Returns true while a capture sequence is running, until the preview has resumed. */
+  boolean isCaptureInProgress() {
+    return captureInProgress;
+  }
+
+  /** Returns true if the preview is running without a capture sequence holding it. */
+  boolean isPreviewState() {
+    return stateMachine.getState() == CaptureStateMachine.STATE_PREVIEW;
+  }
+
+  /** Returns the frames of the capture in progress not submitted yet. May be called anywhere. */
+  int getUnsubmittedFrameCount() {
+    return unsubmittedFrameCount;
+  }
+
+  /** Feeds the AF and AE states of a preview result to the sequence. */
+  void onPreviewResult(int afState, int aeState) {
+    if (stateMachine.isWaitingForResult()) {
+      stateMachine.onResult(afState, aeState);
+    }
+  }
+
+  /** The session has no requests in flight, after Session#stopRepeating. */
+  void onSessionReady() {
+    if (stillCapturePending) {
+      stillCapturePending = false;
+      shotLatencyRecorder.mark(shotId, STAGE_SESSION_READY);
+      startStillCapture();
+    }
+  }
+
+  /** A frame of the submitted still requests has completed. */
+  void onStillFrameCompleted() {
+    if (stillFramesPending == 0) {
+      return;
+    }
+    stillFramesPending--;
+    if (stillFramesPending > 0) {
+      return;
+    }
+    shotLatencyRecorder.mark(shotId, STAGE_CAPTURE_COMPLETED);
+    if (doubleShotPending) {
+      doubleShotPending = false;
+      nonHdrPlusShotPending = true;
+      // The second half of a double shot is tracked as a shot of its own.
+      shotLatencyRecorder.endCapture(shotId);
+      shotId = shotLatencyRecorder.beginShot(clock.nanoTime());
+      lockFocus();
+    } else {
+      finishCapture();
+    }
+  }
+
+  /** A frame of the submitted still requests has failed, no image will follow. */
+  void onStillFrameFailed() {
+    if (stillFramesPending == 0) {
+      return;
+    }
+    shotLatencyRecorder.markImageFailed(shotId);
+    // The second half of a double shot is not taken, the preview resumes.
+    doubleShotPending = false;
+    stillFramesPending--;
+    if (stillFramesPending == 0) {
+      shotLatencyRecorder.mark(shotId, STAGE_CAPTURE_COMPLETED);
+      finishCapture();
+    }
+  }
+
+  /** Starts the capture sequence of the oldest queued capture, if any. */
+  private void startNextCapture() {
+    CaptureRequestQueue.PendingCapture capture = captureQueue.poll();
+    if (capture == null) {
+      captureInProgress = false;
+      unsubmittedFrameCount = 0;
+      return;
+    }
+    captureInProgress = true;
+    unsubmittedFrameCount = capture.frameCount;
+    shotId = shotLatencyRecorder.beginShot(capture.requestTimeNs);
+    switch (capture.shotType) {
+      case CaptureRequestQueue.SHOT_DOUBLE:
+        doubleShotPending = true;
+        break;
+      case CaptureRequestQueue.SHOT_BURST:
+        burstFramesPending = capture.frameCount;
+        break;
+      default:
+        break;
+    }
+    lockFocus();
+  }
+
+  /** Ends the current capture sequence and starts the next queued capture, if any. */
+  private void finishCapture() {
+    unlockFocus();
+    startNextCapture();
+  }
+
+  /** Locks the focus as the first step of a still capture. */
+  private void lockFocus() {
+    stateMachine.setState(CaptureStateMachine.STATE_WAITING_LOCK);
+    session.triggerAutoFocus();
+    shotLatencyRecorder.mark(shotId, STAGE_LOCK_FOCUS_SUBMITTED);
+  }
+
+  /** Unlocks the focus and resumes the preview once the still capture has finished. */
+  private void unlockFocus() {
+    stateMachine.setState(CaptureStateMachine.STATE_PREVIEW);
+    session.resumePreview();
+    shotLatencyRecorder.mark(shotId, STAGE_PREVIEW_RESUMED);
+    shotLatencyRecorder.endCapture(shotId);
+  }
+
+  /**
+   * Stops the preview once focus and exposure are ready. The still requests are submitted on
+   * #onSessionReady, so that no preview frame is captured in their place.
+   */
+  private void captureStillPicture() {
+    session.stopRepeating();
+    shotLatencyRecorder.mark(shotId, STAGE_STOP_REPEATING);
+    stillCapturePending = true;
+  }
+
+  /** Submits a single still, or all frames of a burst at once. */
+  private void startStillCapture() {
+    boolean zsl = !nonHdrPlusShotPending;
+    nonHdrPlusShotPending = false;
+    int frameCount = Math.max(burstFramesPending, 1);
+    burstFramesPending = 0;
+    stillFramesPending = frameCount;
+    if (!session.captureStill(frameCount, zsl)) {
+      // Nothing to wait for, the shot is dropped and the preview resumes.
+      stillFramesPending = 0;
+      doubleShotPending = false;
+      finishCapture();
+      return;
+    }
+    unsubmittedFrameCount = 0;
+    shotLatencyRecorder.mark(shotId, STAGE_STILL_CAPTURE_SUBMITTED);
+    for (int i = 0; i < frameCount; i++) {
+      shotLatencyRecorder.expectImage(shotId);
+    }
+  }
+
+  private void markStage(int oldState, int newState) {
+    switch (newState) {
+      case CaptureStateMachine.STATE_WAITING_PRECAPTURE:
+        shotLatencyRecorder.mark(shotId, STAGE_AF_LOCKED);
+        break;
+      case CaptureStateMachine.STATE_WAITING_NON_PRECAPTURE:
+        shotLatencyRecorder.mark(shotId, STAGE_PRECAPTURE_STARTED);
+        break;
+      case CaptureStateMachine.STATE_PICTURE_TAKEN:
+        if (oldState == CaptureStateMachine.STATE_WAITING_LOCK) {
+          shotLatencyRecorder.mark(shotId, STAGE_AF_LOCKED);
+        } else {
+          shotLatencyRecorder.mark(shotId, STAGE_PRECAPTURE_FINISHED);
+        }
+        break;
+      default:
+        break;
+    }
+  }
+}
@@ -17,18 +17,16 @@ limitations under the License.
 package com.google.android.imaging.pixelvisualcorecamera.common;
 
 import android.content.Context;
-import android.content.Intent;
-import android.icu.text.SimpleDateFormat;
 import android.media.Image;
-import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
 import android.widget.Toast;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 
 /**
  * Utilities for working with the file system.
@@ -37,61 +35,137 @@ public final class FileSystem {
 
   private static final String TAG = "PvcCamFiles";
   private static final String PICTURES_DIR_NAME = "PixelVisualCoreCamera";
+  private static final String METADATA_DIR_NAME = "metadata";
+
+  /** Covers a full API 2 burst with a single commit. */
+  private static final int GROUP_COMMIT_FILES = 8;
+  private static final long GROUP_COMMIT_INTERVAL_MS = 1000;
+
+  /** Covers a burst with a single insert, while single shots show up in the gallery quickly. */
+  private static final int MEDIA_STORE_BATCH_ROWS = 8;
+  private static final long MEDIA_STORE_BATCH_INTERVAL_MS = 250;
+
+  /** Free space that captures leave to the rest of the system. */
+  private static final long STORAGE_RESERVE_BYTES = 100L * 1024 * 1024;
+  /** How long the shots waiting to be saved may take to write. */
+  private static final long MAX_SAVE_BACKLOG_MS = 4000;
+  private static final long FREE_SPACE_SAMPLE_INTERVAL_MS = 2000;
 
   /** The result returned by #saveImage. */
   public static class SaveImageResult {
     public final boolean success;
+    /** The saved file, null if the save failed. */
+    public final File file;
 
     public SaveImageResult(boolean success) {
+      this(success, /*file*/ null);
+    }
+
+    public SaveImageResult(boolean success, File file) {
       this.success = success;
+      this.file = file;
     }
   }
 
-  /** Constructs an filename for jpeg photos. */
-  private static class OutputFileBuilder {
-    private boolean api1;
-    private boolean api2;
+  /** Names the saved files. Sequence numbers run for the lifetime of the process. */
+  private static OutputFileNamer outputFileNamer;
 
-    OutputFileBuilder api1() {
-      if (api2) {
-        throw new IllegalStateException("Output file configured for API 1 and API 2");
-      }
-      api1 = true;
-      return this;
+  /** Adds saved files to the MediaStore. Created with the first save. */
+  private static MediaStoreInserter mediaStoreInserter;
+
+  /** True once the storage directory is known to exist. Cleared when a write fails. */
+  private static volatile boolean storageDirVerified;
+
+  private static final ImageFileWriter.Listener writeListener = new ImageFileWriter.Listener() {
+
+    @Override
+    public void onFileWritten(File file, long writeNs, long syncNs) {
+      Log.d(TAG, String.format(Locale.US, "%s: write %.2fms, sync %.2fms",
+          file.getName(), writeNs / 1e6, syncNs / 1e6));
     }
 
-    OutputFileBuilder api2() {
-      if (api1) {
-        throw new IllegalStateException("Output file configured for API 1 and API 2");
-      }
-      api2 = true;
-      return this;
+    @Override
+    public void onGroupCommitted(int fileCount, long syncNs) {
+      Log.d(TAG, String.format(Locale.US, "group commit of %d files: sync %.2fms",
+          fileCount, syncNs / 1e6));
     }
 
-    File build() {
-      File storageDir = getStorageDir();
-      if (storageDir == null) {
-        return null;
-      }
+    @Override
+    public void onGroupCommitFailed(IOException e) {
+      Log.w(TAG, "group commit failed", e);
+    }
+  };
 
-      // Create a media file name
-      StringBuilder imageFilePathBuilder = new StringBuilder(storageDir.getPath())
-          .append(File.separator)
-          .append("IMG_")
-          .append(new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date()));
-      if (api1) {
-        imageFilePathBuilder.append("_1");
-      } else if (api2) {
-        imageFilePathBuilder.append("_2");
-      }
-      imageFilePathBuilder.append(".jpg");
-      return new File(imageFilePathBuilder.toString());
+  private static final StorageAdmission storageAdmission = new StorageAdmission(
+      FileSystem::sampleAvailableBytes, STORAGE_RESERVE_BYTES, MAX_SAVE_BACKLOG_MS,
+      FREE_SPACE_SAMPLE_INTERVAL_MS);
+
+  /** Atomic writes, with a group commit every 8 files or second. */
+  public static final WritePolicy DEFAULT_WRITE_POLICY =
+      WritePolicy.atomicGroupCommit(GROUP_COMMIT_FILES, GROUP_COMMIT_INTERVAL_MS);
+
+  private static volatile ImageFileWriter imageFileWriter =
+      new ImageFileWriter(DEFAULT_WRITE_POLICY, writeListener);
+
+  /**
+   * Sets how images are written, trading durability against throughput, see
+   * Preferences#getWritePolicy. Files written under the previous policy are still committed by it.
+   */
+  public static synchronized void setWritePolicy(WritePolicy policy) {
+    if (policy.equals(imageFileWriter.getPolicy())) {
+      return;
     }
+    Log.i(TAG, "write policy: " + policy);
+    imageFileWriter = new ImageFileWriter(policy, writeListener);
   }
 
+  /** Decides whether new captures can be saved. Informed of every save. */
+  public static StorageAdmission getStorageAdmission() {
+    return storageAdmission;
+  }
+
+  /** Returns the free space of the volume holding the storage directory. */
+  private static long sampleAvailableBytes() {
+    // The directory may not have been created yet; its volume is that of the nearest ancestor.
+    File dir = getOutputFileNamer().getStorageDir();
+    while (dir != null && !dir.exists()) {
+      dir = dir.getParentFile();
+    }
+    return (dir != null) ? dir.getUsableSpace() : 0;
+  }
+
+  /**
+   * Returns a new file for the capture metadata log of a camera session, in a subdirectory of
+   * the storage directory. The directory is created when the log is first written.
+   */
+  public static File newCaptureMetadataFile() {
+    String name = new SimpleDateFormat("'CAPTURES_'yyyyMMdd_HHmmss_SSS'.bin'", Locale.US)
+        .format(new Date());
+    return new File(new File(getOutputFileNamer().getStorageDir(), METADATA_DIR_NAME), name);
+  }
+
+  private static synchronized OutputFileNamer getOutputFileNamer() {
+    if (outputFileNamer == null) {
+      outputFileNamer = new OutputFileNamer(new File(Environment.getExternalStoragePublicDirectory(
+          Environment.DIRECTORY_PICTURES), PICTURES_DIR_NAME));
+    }
+    return outputFileNamer;
+  }
+
+  private static synchronized MediaStoreInserter getMediaStoreInserter(Context context) {
+    if (mediaStoreInserter == null) {
+      mediaStoreInserter = new MediaStoreInserter(
+          context, MEDIA_STORE_BATCH_ROWS, MEDIA_STORE_BATCH_INTERVAL_MS);
+    }
+    return mediaStoreInserter;
+  }
+
+  /** Returns the storage directory, or null if it could not be created. */
   private static File getStorageDir() {
-    File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
-        Environment.DIRECTORY_PICTURES), PICTURES_DIR_NAME);
+    File mediaStorageDir = getOutputFileNamer().getStorageDir();
+    if (storageDirVerified) {
+      return mediaStorageDir;
+    }
 
     // Create the storage directory if it does not exist
     if (!mediaStorageDir.exists()){
@@ -99,7 +173,13 @@ public final class FileSystem {
         Log.w(TAG, "Failed to create output Pictures directory");
         return null;
       }
+    } else {
+      int deleted = ImageFileWriter.deleteTempFiles(mediaStorageDir);
+      if (deleted > 0) {
+        Log.i(TAG, "deleted " + deleted + " incomplete files");
+      }
     }
+    storageDirVerified = true;
     return mediaStorageDir;
   }
 
@@ -121,59 +201,41 @@ public final class FileSystem {
     return saveBytesToDiskAndReturnResult(context, buffer, isApi1);
   }
 
+  /**
+   * Saves jpeg data to the file system. Should be called on a background thread.
+   */
+  public static SaveImageResult saveImage(Context context, ByteBuffer data, boolean isApi1) {
+    return saveBytesToDiskAndReturnResult(context, data, isApi1);
+  }
+
   private static SaveImageResult saveBytesToDiskAndReturnResult(
       Context context, ByteBuffer byteBuffer, boolean isApi1) {
-    File outputFile = saveBytesToDisk(context, byteBuffer, isApi1);
-    if (outputFile != null) {
-      updateMediaStore(context, outputFile);
-      return new SaveImageResult(/*success*/ true);
+    if (getStorageDir() == null) {
+      return new SaveImageResult(/*success*/ false);
     }
-    return new SaveImageResult(/*success*/ false);
-  }
-
-  private static File saveBytesToDisk(Context context, ByteBuffer byteBuffer, boolean isApi1) {
-    byte[] bytes = new byte[byteBuffer.remaining()];
-    byteBuffer.get(bytes);
-    FileOutputStream output = null;
-    File outputFile;
+    long dateTakenMs = System.currentTimeMillis();
+    File outputFile = new File(getOutputFileNamer().newPath(dateTakenMs, isApi1));
+    // Read before the write consumes the buffer.
+    JpegHeader header = JpegHeader.parse(byteBuffer);
+    long size = byteBuffer.remaining();
+    long startNs = System.nanoTime();
     try {
-      OutputFileBuilder outputFileBuilder = new OutputFileBuilder();
-      if (isApi1) {
-        outputFileBuilder.api1();
-      } else {
-        outputFileBuilder.api2();
-      }
-      outputFile = outputFileBuilder.build();
-      if (outputFile != null) {
-        output = new FileOutputStream(outputFile);
-        output.write(bytes);
-        Log.i(TAG,  "Wrote " + outputFile.getName());
-        Toasts.showToast(context, "Wrote " + outputFile.getName(), Toast.LENGTH_SHORT);
-      }
+      imageFileWriter.save(outputFile, byteBuffer);
     } catch (IOException e) {
-      outputFile = null;
       Log.w(TAG, e);
-    } finally {
-      Log.i(TAG, "closing Image after saving");
-      if (null != output) {
-        try {
-          output.close();
-        } catch (IOException e) {
-          outputFile = null;
-          Log.w(TAG, e);
-        }
-      }
+      storageAdmission.onWriteFailed();
+      // E.g., the directory was deleted; check it again with the next save.
+      storageDirVerified = false;
+      return new SaveImageResult(/*success*/ false);
     }
-    return outputFile;
-  }
-
-  /**
-   * Notifies system there is a new media file, so that it appears in photo galleries immediately.
-   */
-  private static void updateMediaStore(Context context, File file) {
-    Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-    intent.setData(Uri.fromFile(file));
-    context.sendBroadcast(intent);
+    storageAdmission.onImageWritten(
+        (header != null) ? (long) header.width * header.height : 0, size,
+        System.nanoTime() - startNs);
+    Log.i(TAG,  "Wrote " + outputFile.getName());
+    Toasts.showToast(context, "Wrote " + outputFile.getName(), Toast.LENGTH_SHORT);
+    // The file is at its final path, so the row never refers to a partial file.
+    getMediaStoreInserter(context).add(outputFile, header, dateTakenMs, size);
+    return new SaveImageResult(/*success*/ true, outputFile);
   }
 
   private FileSystem() {}
@@ -0,0 +1,241 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import com.google.android.imaging.pixelvisualcorecamera.common.WritePolicy.Durability;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes encoded images to files, following a {@link WritePolicy}. Has no framework
+ * dependencies. Thread safe.
+ */
+final class ImageFileWriter {
+
+  /** Reports the time spent writing. Called on the writing thread, or the commit thread. */
+  interface Listener {
+
+    /**
+     * A file has been written and, for atomic writes, renamed to its final name.
+     *
+     * @param writeNs the time to write the data
+     * @param syncNs the time to sync the file and its directory, 0 unless syncing every file
+     */
+    void onFileWritten(File file, long writeNs, long syncNs);
+
+    /** A group commit synced the given number of files. */
+    void onGroupCommitted(int fileCount, long syncNs);
+
+    /**
+     * A group commit failed. The files are in place, but may not be on storage. The saves are
+     * not failed, since the files are complete.
+     */
+    void onGroupCommitFailed(IOException e);
+  }
+
+  /** Temp files are hidden, so that media scanners skip them. */
+  private static final String TEMP_PREFIX = ".";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final WritePolicy policy;
+  private final Listener listener;
+
+  /** Files renamed since the last group commit, kept open so they can be synced. */
+  private final List<FileOutputStream> uncommittedFiles = new ArrayList<>();
+  private final Set<File> uncommittedDirs = new LinkedHashSet<>();
+  private ScheduledThreadPoolExecutor commitExecutor;
+  private ScheduledFuture<?> scheduledCommit;
+
+  ImageFileWriter(WritePolicy policy, Listener listener) {
+    this.policy = policy;
+    this.listener = listener;
+  }
+
+  WritePolicy getPolicy() {
+    return policy;
+  }
+
+  /** Writes the remaining bytes of the buffer to the file, following the policy. */
+  void save(File file, ByteBuffer data) throws IOException {
+    if (!policy.atomic) {
+      long startNs = System.nanoTime();
+      write(file, data);
+      listener.onFileWritten(file, System.nanoTime() - startNs, 0);
+      return;
+    }
+    File dir = file.getAbsoluteFile().getParentFile();
+    File tempFile = new File(dir, TEMP_PREFIX + file.getName() + TEMP_SUFFIX);
+    long startNs = System.nanoTime();
+    FileOutputStream output = new FileOutputStream(tempFile);
+    boolean uncommitted = false;
+    try {
+      writeFully(output.getChannel(), data);
+      long writeNs = System.nanoTime() - startNs;
+      long syncNs = 0;
+      if (policy.durability == Durability.FSYNC_EACH) {
+        // The data must be on storage before the rename is.
+        long syncStartNs = System.nanoTime();
+        output.getFD().sync();
+        rename(tempFile, file);
+        syncDirectory(dir);
+        syncNs = System.nanoTime() - syncStartNs;
+      } else {
+        rename(tempFile, file);
+      }
+      listener.onFileWritten(file, writeNs, syncNs);
+      if (policy.durability == Durability.GROUP_COMMIT) {
+        uncommitted = true;
+        addUncommitted(output, dir);
+      }
+    } catch (IOException e) {
+      if (tempFile.exists() && !tempFile.delete()) {
+        e.addSuppressed(new IOException("Failed to delete " + tempFile));
+      }
+      throw e;
+    } finally {
+      if (!uncommitted) {
+        output.close();
+      }
+    }
+  }
+
+  /** Syncs the files written since the last commit. */
+  synchronized void commit() throws IOException {
+    if (scheduledCommit != null) {
+      scheduledCommit.cancel(false);
+      scheduledCommit = null;
+    }
+    if (uncommittedFiles.isEmpty()) {
+      return;
+    }
+    long startNs = System.nanoTime();
+    int fileCount = uncommittedFiles.size();
+    IOException failure = null;
+    for (FileOutputStream output : uncommittedFiles) {
+      try {
+        output.getFD().sync();
+      } catch (IOException e) {
+        failure = (failure == null) ? e : failure;
+      } finally {
+        try {
+          output.close();
+        } catch (IOException e) {
+          failure = (failure == null) ? e : failure;
+        }
+      }
+    }
+    uncommittedFiles.clear();
+    for (File dir : uncommittedDirs) {
+      try {
+        syncDirectory(dir);
+      } catch (IOException e) {
+        failure = (failure == null) ? e : failure;
+      }
+    }
+    uncommittedDirs.clear();
+    if (failure != null) {
+      throw failure;
+    }
+    listener.onGroupCommitted(fileCount, System.nanoTime() - startNs);
+  }
+
+  /** Commits the batch once it is full, otherwise makes sure a commit is scheduled. */
+  private synchronized void addUncommitted(FileOutputStream output, File dir) {
+    uncommittedFiles.add(output);
+    uncommittedDirs.add(dir);
+    if (uncommittedFiles.size() >= policy.groupCommitFiles) {
+      commitOrReport();
+    } else if (scheduledCommit == null) {
+      if (commitExecutor == null) {
+        commitExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+          Thread thread = new Thread(runnable, "ImageFileCommit");
+          thread.setDaemon(true);
+          return thread;
+        });
+        commitExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        commitExecutor.allowCoreThreadTimeOut(true);
+      }
+      scheduledCommit = commitExecutor.schedule(
+          this::commitOrReport, policy.groupCommitIntervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void commitOrReport() {
+    try {
+      commit();
+    } catch (IOException e) {
+      listener.onGroupCommitFailed(e);
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of the buffer to the file, replacing its contents. The buffer is
+   * handed to the file channel directly, so direct buffers (e.g., Image planes) are written
+   * without a copy on the heap.
+   */
+  static void write(File file, ByteBuffer data) throws IOException {
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      writeFully(output.getChannel(), data);
+    }
+  }
+
+  /** Deletes the temp files left behind by writes that did not complete, e.g., in a crash. */
+  static int deleteTempFiles(File dir) {
+    File[] files = dir.listFiles((d, name) ->
+        name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX));
+    int deleted = 0;
+    if (files != null) {
+      for (File file : files) {
+        if (file.delete()) {
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+
+  /** Writes all remaining bytes, a single channel write may complete only part of the buffer. */
+  private static void writeFully(FileChannel channel, ByteBuffer byteBuffer) throws IOException {
+    while (byteBuffer.hasRemaining()) {
+      channel.write(byteBuffer);
+    }
+  }
+
+  private static void rename(File from, File to) throws IOException {
+    if (!from.renameTo(to)) {
+      throw new IOException("Failed to rename " + from + " to " + to);
+    }
+  }
+
+  /** Makes renames in the directory durable. */
+  private static void syncDirectory(File dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import android.util.Log;
+import com.google.android.imaging.pixelvisualcorecamera.common.FileSystem.SaveImageResult;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Saves images on a dedicated thread, so that file I/O does not stall the camera thread.
+ * Pending saves are held in a bounded queue. When the queue is full, the back-pressure
+ * policy decides what happens to new requests.
+ *
+ * <p>Each #start begins a run with a queue and thread of its own. #stop does not wait for the
+ * pending saves: the stopped run drains on its thread, while a new run may already have been
+ * started.
+ */
+public final class ImageSaver {
+
+  private static final String TAG = "PvcCamSaver";
+
+  /** Determines how the saver behaves when the queue is full. */
+  public enum BackPressurePolicy {
+    /** Block the submitting thread until there is room in the queue. */
+    BLOCK,
+    /** Discard the oldest pending request to make room for the new one. */
+    DROP_OLDEST,
+    /**
+     * Refuse new captures while the queue is full, see {@link #isAcceptingCaptures(int)}.
+     * Images that arrive anyway block the submitting thread, since they have already been
+     * taken.
+     */
+    REFUSE_CAPTURE
+  }
+
+  /** Performs the actual write. Called on the saver thread. */
+  public interface Writer {
+    SaveImageResult write(ByteBuffer data);
+  }
+
+  /** Callback for when a single save request has been written, has failed, or was dropped. */
+  public interface OnSaveCompleteListener {
+
+    /** Called on the saver thread, or on the submitting thread if the request was dropped. */
+    void onSaveComplete(SaveImageResult result);
+  }
+
+  private static final class SaveRequest {
+    final ByteBuffer data;
+    final OnSaveCompleteListener listener;
+
+    SaveRequest(ByteBuffer data, OnSaveCompleteListener listener) {
+      this.data = data;
+      this.listener = listener;
+    }
+  }
+
+  /**
+   * Enqueued by #stop to wake up a saver thread waiting for requests. Queued only after submits
+   * are closed, so it is always last and never dropped.
+   */
+  private static final SaveRequest STOP_REQUEST = new SaveRequest(null, null);
+
+  /** The queue and thread state of one start/stop cycle. */
+  private static final class Run {
+    final BlockingQueue<SaveRequest> queue;
+    final CompletableFuture<Void> stopped = new CompletableFuture<>();
+    volatile boolean stopping;
+
+    Run(int queueDepth) {
+      queue = new ArrayBlockingQueue<>(queueDepth);
+    }
+  }
+
+  private final int queueDepth;
+  private final BackPressurePolicy policy;
+  private final Writer writer;
+
+  /** Held while a request is queued, so that #stop can close submits. */
+  private final Object submitLock = new Object();
+
+  /** The run between #start and #stop, null otherwise. Written under submitLock. */
+  private volatile Run run;
+
+  /**
+   * @param queueDepth the maximum number of requests waiting to be written
+   * @param policy what to do with new requests when the queue is full
+   * @param writer writes the image data, called on the saver thread
+   */
+  public ImageSaver(int queueDepth, BackPressurePolicy policy, Writer writer) {
+    if (queueDepth < 1) {
+      throw new IllegalArgumentException("queue depth must be at least 1");
+    }
+    this.queueDepth = queueDepth;
+    this.policy = policy;
+    this.writer = writer;
+  }
+
+  /** Starts a saver thread. */
+  public void start() {
+    synchronized (submitLock) {
+      if (run != null) {
+        throw new IllegalStateException("ImageSaver already started");
+      }
+      Run newRun = new Run(queueDepth);
+      new Thread(() -> processRequests(newRun), "ImageSaver").start();
+      run = newRun;
+    }
+  }
+
+  /**
+   * Stops accepting requests; those submitted from now on are failed right away. Returns
+   * without waiting for the pending requests, which are still written. The returned future
+   * completes on the saver thread once they have been.
+   */
+  public CompletableFuture<Void> stop() {
+    Run stoppedRun;
+    // Waits for a submit blocked on a full queue; the saver thread drains the queue meanwhile.
+    synchronized (submitLock) {
+      stoppedRun = run;
+      if (stoppedRun == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      run = null;
+    }
+    stoppedRun.stopping = true;
+    // A full queue needs no wake-up, the saver thread exits once it has drained it.
+    stoppedRun.queue.offer(STOP_REQUEST);
+    return stoppedRun.stopped;
+  }
+
+  /** Returns the number of requests waiting to be written. */
+  public int getPendingCount() {
+    Run r = run;
+    return (r != null) ? r.queue.size() : 0;
+  }
+
+  /**
+   * Returns true if a capture producing the given number of images should be started.
+   * Only the REFUSE_CAPTURE policy ever refuses captures.
+   */
+  public boolean isAcceptingCaptures(int imageCount) {
+    Run r = run;
+    int remainingCapacity = (r != null) ? r.queue.remainingCapacity() : queueDepth;
+    return policy != BackPressurePolicy.REFUSE_CAPTURE || remainingCapacity >= imageCount;
+  }
+
+  /**
+   * Queues the data to be written. The saver takes ownership of the buffer; it must not be
+   * modified after this call. Depending on the policy this call may block. If the saver is not
+   * running, the request is failed right away.
+   */
+  public void submit(ByteBuffer data, OnSaveCompleteListener listener) {
+    SaveRequest request = new SaveRequest(data, listener);
+    synchronized (submitLock) {
+      Run r = run;
+      if (r == null) {
+        Log.w(TAG, "Saver not running, image not saved");
+        notifyComplete(request, new SaveImageResult(/*success*/ false));
+        return;
+      }
+      enqueue(r.queue, request);
+    }
+  }
+
+  private void enqueue(BlockingQueue<SaveRequest> queue, SaveRequest request) {
+    try {
+      if (policy == BackPressurePolicy.DROP_OLDEST) {
+        while (!queue.offer(request)) {
+          SaveRequest dropped = queue.poll();
+          if (dropped != null) {
+            Log.w(TAG, "Save queue full, dropping oldest image");
+            notifyComplete(dropped, new SaveImageResult(/*success*/ false));
+          }
+        }
+      } else {
+        queue.put(request);
+      }
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Interrupted while queueing image", e);
+      notifyComplete(request, new SaveImageResult(/*success*/ false));
+    }
+  }
+
+  private void processRequests(Run r) {
+    try {
+      writeRequests(r);
+    } finally {
+      r.stopped.complete(null);
+    }
+  }
+
+  private void writeRequests(Run r) {
+    while (!r.stopping || !r.queue.isEmpty()) {
+      SaveRequest request;
+      try {
+        request = r.queue.take();
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Saver thread interrupted", e);
+        return;
+      }
+      if (request == STOP_REQUEST) {
+        return;
+      }
+      SaveImageResult result;
+      try {
+        result = writer.write(request.data);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to save image", e);
+        result = new SaveImageResult(/*success*/ false);
+      }
+      notifyComplete(request, result);
+    }
+  }
+
+  private static void notifyComplete(SaveRequest request, SaveImageResult result) {
+    if (request.listener != null) {
+      request.listener.onSaveComplete(result);
+    }
+  }
+}
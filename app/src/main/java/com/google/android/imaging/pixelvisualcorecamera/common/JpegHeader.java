@@ -0,0 +1,153 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The dimensions and EXIF orientation of a jpeg, read from the encoded data in memory. Only the
+ * marker segments before the scan data are visited. Has no framework dependencies.
+ */
+final class JpegHeader {
+
+  private static final int MARKER_SOI = 0xD8;
+  private static final int MARKER_EOI = 0xD9;
+  private static final int MARKER_SOS = 0xDA;
+  private static final int MARKER_APP1 = 0xE1;
+  private static final int EXIF_TAG_ORIENTATION = 0x0112;
+  private static final int EXIF_TYPE_SHORT = 3;
+
+  final int width;
+  final int height;
+  /** Clockwise rotation in degrees that displays the image upright: 0, 90, 180 or 270. */
+  final int orientation;
+
+  private JpegHeader(int width, int height, int orientation) {
+    this.width = width;
+    this.height = height;
+    this.orientation = orientation;
+  }
+
+  /**
+   * Parses the header from the remaining bytes of the buffer, without changing its position.
+   * Returns null if the data is not a jpeg or has no frame header. A missing or malformed
+   * EXIF orientation is treated as 0.
+   */
+  static JpegHeader parse(ByteBuffer data) {
+    ByteBuffer buf = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+    int pos = buf.position();
+    int limit = buf.limit();
+    if (limit - pos < 4 || u8(buf, pos) != 0xFF || u8(buf, pos + 1) != MARKER_SOI) {
+      return null;
+    }
+    pos += 2;
+    int orientation = 0;
+    while (pos + 4 <= limit) {
+      if (u8(buf, pos) != 0xFF) {
+        return null;
+      }
+      int marker = u8(buf, pos + 1);
+      if (marker == 0xFF) {
+        // Fill byte.
+        pos++;
+        continue;
+      }
+      if (marker == MARKER_SOS || marker == MARKER_EOI) {
+        return null;
+      }
+      int segmentStart = pos + 4;
+      int segmentEnd = pos + 2 + u16(buf, pos + 2);
+      if (segmentEnd > limit || segmentEnd < segmentStart) {
+        return null;
+      }
+      if (marker == MARKER_APP1) {
+        orientation = parseExifOrientation(buf, segmentStart, segmentEnd, orientation);
+      } else if (isStartOfFrame(marker) && segmentStart + 5 <= segmentEnd) {
+        int height = u16(buf, segmentStart + 1);
+        int width = u16(buf, segmentStart + 3);
+        // The frame header follows the EXIF segment, so the orientation is known here.
+        return new JpegHeader(width, height, orientation);
+      }
+      pos = segmentEnd;
+    }
+    return null;
+  }
+
+  /** SOF0 to SOF15, except DHT, JPG and DAC, which share the range. */
+  private static boolean isStartOfFrame(int marker) {
+    return marker >= 0xC0 && marker <= 0xCF
+        && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+  }
+
+  /** Returns the orientation from an APP1 segment, or the default if it is not EXIF. */
+  private static int parseExifOrientation(ByteBuffer buf, int start, int end, int defaultValue) {
+    // "Exif\0\0", followed by a TIFF header.
+    if (end - start < 14 || buf.getInt(start) != 0x45786966 || buf.getShort(start + 4) != 0) {
+      return defaultValue;
+    }
+    int tiff = start + 6;
+    ByteOrder order;
+    if (buf.getShort(tiff) == 0x4949) {
+      order = ByteOrder.LITTLE_ENDIAN;
+    } else if (buf.getShort(tiff) == 0x4D4D) {
+      order = ByteOrder.BIG_ENDIAN;
+    } else {
+      return defaultValue;
+    }
+    ByteBuffer exif = buf.duplicate().order(order);
+    long ifdOffset = exif.getInt(tiff + 4) & 0xFFFFFFFFL;
+    if (ifdOffset > end - tiff - 2) {
+      return defaultValue;
+    }
+    int ifd = tiff + (int) ifdOffset;
+    int entryCount = exif.getShort(ifd) & 0xFFFF;
+    for (int i = 0, entry = ifd + 2; i < entryCount && entry + 12 <= end; i++, entry += 12) {
+      if ((exif.getShort(entry) & 0xFFFF) == EXIF_TAG_ORIENTATION) {
+        if ((exif.getShort(entry + 2) & 0xFFFF) != EXIF_TYPE_SHORT) {
+          return defaultValue;
+        }
+        return toDegrees(exif.getShort(entry + 8) & 0xFFFF, defaultValue);
+      }
+    }
+    return defaultValue;
+  }
+
+  /** Maps the EXIF orientation values without mirroring to degrees. */
+  private static int toDegrees(int exifOrientation, int defaultValue) {
+    switch (exifOrientation) {
+      case 1:
+        return 0;
+      case 3:
+        return 180;
+      case 6:
+        return 90;
+      case 8:
+        return 270;
+      default:
+        return defaultValue;
+    }
+  }
+
+  private static int u8(ByteBuffer buf, int index) {
+    return buf.get(index) & 0xFF;
+  }
+
+  private static int u16(ByteBuffer buf, int index) {
+    return buf.getShort(index) & 0xFFFF;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds saved photos to the MediaStore directly, with the metadata the app already has, instead
+ * of asking the media scanner to read each file back. Rows are inserted in batches of up to
+ * maxBatch rows, or intervalMs after the first pending row, so that a burst costs a single
+ * provider call. Thread safe.
+ */
+final class MediaStoreInserter {
+
+  private static final String TAG = "PvcCamMediaStore";
+  private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+  private final Context context;
+  private final ContentResolver contentResolver;
+  private final int maxBatch;
+  private final long intervalMs;
+
+  private final List<ContentValues> pendingRows = new ArrayList<>();
+  private final List<File> pendingFiles = new ArrayList<>();
+  private ScheduledThreadPoolExecutor insertExecutor;
+  private ScheduledFuture<?> scheduledInsert;
+
+  MediaStoreInserter(Context context, int maxBatch, long intervalMs) {
+    this.context = context.getApplicationContext();
+    this.contentResolver = this.context.getContentResolver();
+    this.maxBatch = maxBatch;
+    this.intervalMs = intervalMs;
+  }
+
+  /**
+   * Queues a row for a jpeg that is complete at its final path.
+   *
+   * @param header the dimensions and orientation, or null if unknown
+   * @param dateTakenMs the wall clock time of the capture
+   * @param size the size of the file in bytes
+   */
+  synchronized void add(File file, JpegHeader header, long dateTakenMs, long size) {
+    pendingRows.add(newRow(file, header, dateTakenMs, size));
+    pendingFiles.add(file);
+    if (pendingRows.size() >= maxBatch) {
+      flush();
+    } else if (scheduledInsert == null) {
+      if (insertExecutor == null) {
+        insertExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+          Thread thread = new Thread(runnable, "MediaStoreInsert");
+          thread.setDaemon(true);
+          return thread;
+        });
+        insertExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        insertExecutor.allowCoreThreadTimeOut(true);
+      }
+      scheduledInsert = insertExecutor.schedule(this::flush, intervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Inserts the pending rows. */
+  synchronized void flush() {
+    if (scheduledInsert != null) {
+      scheduledInsert.cancel(false);
+      scheduledInsert = null;
+    }
+    if (pendingRows.isEmpty()) {
+      return;
+    }
+    ContentValues[] rows = pendingRows.toArray(new ContentValues[0]);
+    long startNs = System.nanoTime();
+    int inserted;
+    try {
+      inserted = contentResolver.bulkInsert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, rows);
+    } catch (RuntimeException e) {
+      // E.g., the provider rejected a column. Let the scanner have a go instead.
+      Log.w(TAG, "bulk insert failed", e);
+      inserted = 0;
+    }
+    Log.d(TAG, String.format(Locale.US, "inserted %d of %d rows in %.2fms",
+        inserted, rows.length, (System.nanoTime() - startNs) / 1e6));
+    if (inserted < rows.length) {
+      for (File file : pendingFiles) {
+        requestScan(file);
+      }
+    }
+    pendingRows.clear();
+    pendingFiles.clear();
+  }
+
+  private static ContentValues newRow(File file, JpegHeader header, long dateTakenMs, long size) {
+    String name = file.getName();
+    int extension = name.lastIndexOf('.');
+    long dateAddedSeconds = System.currentTimeMillis() / 1000;
+    ContentValues row = new ContentValues(11);
+    row.put(MediaStore.Images.Media.DATA, file.getAbsolutePath());
+    row.put(MediaStore.Images.Media.DISPLAY_NAME, name);
+    row.put(MediaStore.Images.Media.TITLE, (extension > 0) ? name.substring(0, extension) : name);
+    row.put(MediaStore.Images.Media.MIME_TYPE, MIME_TYPE_JPEG);
+    row.put(MediaStore.Images.Media.DATE_TAKEN, dateTakenMs);
+    row.put(MediaStore.Images.Media.DATE_ADDED, dateAddedSeconds);
+    row.put(MediaStore.Images.Media.DATE_MODIFIED, dateAddedSeconds);
+    row.put(MediaStore.Images.Media.SIZE, size);
+    if (header != null) {
+      row.put(MediaStore.Images.Media.WIDTH, header.width);
+      row.put(MediaStore.Images.Media.HEIGHT, header.height);
+      row.put(MediaStore.Images.Media.ORIENTATION, header.orientation);
+    }
+    return row;
+  }
+
+  /** Falls back to the media scanner, which reads the file to fill in the row. */
+  private void requestScan(File file) {
+    Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+    intent.setData(Uri.fromFile(file));
+    context.sendBroadcast(intent);
+  }
+}
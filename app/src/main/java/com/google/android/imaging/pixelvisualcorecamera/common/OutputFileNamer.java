@@ -0,0 +1,80 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Names jpeg photos IMG_yyyyMMdd_HHmmss_SSS_NNNN_A.jpg, where NNNN is a sequence number and A
+ * the camera API. The sequence number increases with every name, so shots taken within the same
+ * millisecond, e.g., in a burst, still get distinct names. The date is formatted at most once
+ * per second; other names reuse it. Thread safe.
+ */
+final class OutputFileNamer {
+
+  private static final int MIN_SEQUENCE_DIGITS = 4;
+
+  private final File storageDir;
+  private final String storagePath;
+  private final SimpleDateFormat secondsFormat =
+      new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+  private final StringBuilder pathBuilder = new StringBuilder(128);
+  private long formattedSecond = Long.MIN_VALUE;
+  private String formattedSecondText;
+  private int sequence;
+
+  /** @param storageDir the directory that will contain the files */
+  OutputFileNamer(File storageDir) {
+    this.storageDir = storageDir;
+    this.storagePath = storageDir.getPath() + File.separator;
+  }
+
+  File getStorageDir() {
+    return storageDir;
+  }
+
+  /** Returns a new path for a photo taken at the given wall clock time. */
+  synchronized String newPath(long timeMs, boolean isApi1) {
+    // Time zone offsets are whole minutes, so the formatted seconds only depend on the second.
+    long second = Math.floorDiv(timeMs, 1000);
+    if (second != formattedSecond) {
+      formattedSecondText = secondsFormat.format(new Date(second * 1000));
+      formattedSecond = second;
+    }
+    StringBuilder sb = pathBuilder;
+    sb.setLength(0);
+    sb.append(storagePath).append("IMG_").append(formattedSecondText).append('_');
+    appendPadded(sb, (int) (timeMs - second * 1000), 3);
+    sb.append('_');
+    appendPadded(sb, ++sequence, MIN_SEQUENCE_DIGITS);
+    sb.append(isApi1 ? "_1" : "_2").append(".jpg");
+    return sb.toString();
+  }
+
+  /** Appends the non-negative value with leading zeros. */
+  private static void appendPadded(StringBuilder sb, int value, int minDigits) {
+    for (int limit = 10, digits = 1; digits < minDigits; limit *= 10, digits++) {
+      if (value < limit) {
+        sb.append('0');
+      }
+    }
+    sb.append(value);
+  }
+}
@@ -32,6 +32,13 @@ public final class Preferences {
   private static final boolean PREF_BOOL_API1_DEFAULT = false;
   private static final String PREF_INT_CAMERA = "camera_id";
   private static final int PREF_INT_CAMERA_DEFAULT = 0;
+  private static final String PREF_STRING_WRITE_POLICY = "write_policy";
+
+  /** Names of the write policies, see #setWritePolicyName. */
+  private static final String WRITE_POLICY_DIRECT = "direct";
+  private static final String WRITE_POLICY_ATOMIC = "atomic";
+  private static final String WRITE_POLICY_FSYNC_EACH = "fsync_each";
+  private static final String WRITE_POLICY_GROUP_COMMIT = "group_commit";
 
   private final Context context;
 
@@ -55,6 +62,38 @@ public final class Preferences {
     setInt(PREF_INT_CAMERA, cameraId);
   }
 
+  /** Returns how saved images are written. Defaults to FileSystem#DEFAULT_WRITE_POLICY. */
+  public WritePolicy getWritePolicy() {
+    String name = getString(PREF_STRING_WRITE_POLICY, WRITE_POLICY_GROUP_COMMIT);
+    switch (name) {
+      case WRITE_POLICY_DIRECT:
+        return WritePolicy.direct();
+      case WRITE_POLICY_ATOMIC:
+        return WritePolicy.atomic();
+      case WRITE_POLICY_FSYNC_EACH:
+        return WritePolicy.atomicFsyncEach();
+      default:
+        return FileSystem.DEFAULT_WRITE_POLICY;
+    }
+  }
+
+  /**
+   * Sets how saved images are written: "direct", "atomic", "fsync_each" or "group_commit", see
+   * WritePolicy. Unknown names are ignored.
+   */
+  public void setWritePolicyName(String name) {
+    switch (name) {
+      case WRITE_POLICY_DIRECT:
+      case WRITE_POLICY_ATOMIC:
+      case WRITE_POLICY_FSYNC_EACH:
+      case WRITE_POLICY_GROUP_COMMIT:
+        setString(PREF_STRING_WRITE_POLICY, name);
+        break;
+      default:
+        Log.w(TAG, "unknown write policy: " + name);
+    }
+  }
+
   private boolean getBoolean(String boolKeyName, boolean defaultValue) {
     SharedPreferences pref = context.getSharedPreferences(PREFERENCE_FILENAME, MODE_PRIVATE);
     boolean temp = pref.getBoolean(boolKeyName, defaultValue);
@@ -77,4 +116,15 @@ public final class Preferences {
     SharedPreferences pref = context.getSharedPreferences(PREFERENCE_FILENAME, MODE_PRIVATE);
     pref.edit().putInt(intKeyName, value).apply();
   }
+
+  private String getString(String stringKeyName, String defaultValue) {
+    SharedPreferences pref = context.getSharedPreferences(PREFERENCE_FILENAME, MODE_PRIVATE);
+    return pref.getString(stringKeyName, defaultValue);
+  }
+
+  private void setString(String stringKeyName, String value) {
+    SharedPreferences pref = context.getSharedPreferences(PREFERENCE_FILENAME, MODE_PRIVATE);
+    pref.edit().putString(stringKeyName, value).apply();
+    Log.i(TAG, "pref " + stringKeyName + " <- " + value);
+  }
 }
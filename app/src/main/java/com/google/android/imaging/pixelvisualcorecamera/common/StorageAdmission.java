@@ -0,0 +1,180 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides how many frames of a new capture storage can take, before the capture is taken, so
+ * that the camera is never left holding images that cannot be saved. Has no framework
+ * dependencies. Thread safe.
+ *
+ * <p>The size of a shot is estimated from the bytes per pixel of recently written jpegs and the
+ * output size. A capture is refused when its shots, and those still waiting to be saved, would
+ * eat into the reserve of free space. A burst is shortened to what fits, and to what the
+ * observed write bandwidth can save within the backlog limit; a capture that would exceed the
+ * limit with its first frame is deferred.
+ */
+public final class StorageAdmission {
+
+  /** The outcome of #admit. */
+  public enum Outcome {
+    /** All requested frames may be captured. */
+    ACCEPT,
+    /** Only some of the requested frames may be captured. */
+    THROTTLE,
+    /** No frame may be captured until the shots waiting to be saved have been written. */
+    DEFER,
+    /** No frame may be captured, storage is full. */
+    REFUSE
+  }
+
+  /** The decision on a capture. */
+  public static final class Decision {
+    public final Outcome outcome;
+    /** The number of frames that may be captured, 0 if deferred or refused. */
+    public final int frameCount;
+    /** Why frames were held back, for logging. Empty if accepted. */
+    public final String reason;
+
+    Decision(Outcome outcome, int frameCount, String reason) {
+      this.outcome = outcome;
+      this.frameCount = frameCount;
+      this.reason = reason;
+    }
+
+    @Override
+    public String toString() {
+      return outcome + " " + frameCount + (reason.isEmpty() ? "" : " (" + reason + ")");
+    }
+  }
+
+  /** Conservative until a jpeg has been written; high quality jpegs are well below this. */
+  private static final double INITIAL_BYTES_PER_PIXEL = 0.5;
+  private static final double EWMA_WEIGHT = 0.25;
+
+  private final LongSupplier availableBytesSupplier;
+  private final long reserveBytes;
+  private final long maxBacklogMs;
+  private final long sampleIntervalMs;
+
+  private double bytesPerPixel = INITIAL_BYTES_PER_PIXEL;
+  /** Write bandwidth in bytes per second, 0 until a write has been observed. */
+  private double bytesPerSecond;
+  private long sampledAvailableBytes;
+  private long sampleTimeNs;
+  private boolean sampled;
+  /** Bytes written since the free space was sampled, not yet reflected in the sample. */
+  private long bytesWrittenSinceSample;
+
+  /**
+   * @param availableBytesSupplier samples the free space of the storage volume; may block
+   * @param reserveBytes free space that captures must leave to the rest of the system
+   * @param maxBacklogMs how long the unsaved shots may take to write at the observed bandwidth
+   * @param sampleIntervalMs how long a free space sample is used for; writes in the meantime
+   *     are deducted from it
+   */
+  public StorageAdmission(LongSupplier availableBytesSupplier, long reserveBytes,
+      long maxBacklogMs, long sampleIntervalMs) {
+    this.availableBytesSupplier = availableBytesSupplier;
+    this.reserveBytes = reserveBytes;
+    this.maxBacklogMs = maxBacklogMs;
+    this.sampleIntervalMs = sampleIntervalMs;
+  }
+
+  /**
+   * Decides how many of the frames may be captured.
+   *
+   * @param frameCount the frames of the new capture
+   * @param pendingFrameCount frames taken or queued, but not yet saved
+   * @param outputPixels the pixels of the configured output size
+   */
+  public synchronized Decision admit(int frameCount, int pendingFrameCount, long outputPixels) {
+    long shotBytes = estimateShotBytes(outputPixels);
+    long spareBytes = getAvailableBytes() - reserveBytes - pendingFrameCount * shotBytes;
+    long framesBySpace = Math.max(0, spareBytes / shotBytes);
+    if (framesBySpace == 0) {
+      return new Decision(Outcome.REFUSE, 0, "storage full");
+    }
+    int admitted = (int) Math.min(frameCount, framesBySpace);
+    String reason = (admitted < frameCount) ? "storage nearly full" : "";
+    if (bytesPerSecond > 0) {
+      long backlogFrames = (long) (bytesPerSecond * maxBacklogMs / 1000 / shotBytes);
+      // A capture is always allowed a frame once the saver has caught up.
+      long framesByBandwidth = Math.max(
+          backlogFrames - pendingFrameCount, (pendingFrameCount == 0) ? 1 : 0);
+      if (framesByBandwidth < admitted) {
+        admitted = (int) framesByBandwidth;
+        reason = String.format(
+            Locale.US, "writing at %.1fMB/s", bytesPerSecond / (1024 * 1024));
+      }
+    }
+    if (admitted == 0) {
+      return new Decision(Outcome.DEFER, 0, reason);
+    }
+    return new Decision(
+        (admitted < frameCount) ? Outcome.THROTTLE : Outcome.ACCEPT, admitted, reason);
+  }
+
+  /** Returns the estimated size in bytes of a shot with the given number of pixels. */
+  public synchronized long estimateShotBytes(long outputPixels) {
+    return Math.max(1, (long) Math.ceil(outputPixels * bytesPerPixel));
+  }
+
+  /**
+   * Records a written image.
+   *
+   * @param pixels the pixels of the image, or 0 if unknown
+   * @param bytes the size of the file
+   * @param writeNs the time taken to write it
+   */
+  public synchronized void onImageWritten(long pixels, long bytes, long writeNs) {
+    if (pixels > 0) {
+      bytesPerPixel += EWMA_WEIGHT * ((double) bytes / pixels - bytesPerPixel);
+    }
+    if (writeNs > 0) {
+      double sample = bytes * 1e9 / writeNs;
+      bytesPerSecond = (bytesPerSecond == 0)
+          ? sample : bytesPerSecond + EWMA_WEIGHT * (sample - bytesPerSecond);
+    }
+    bytesWrittenSinceSample += bytes;
+  }
+
+  /** Records a failed write. The free space is sampled again with the next capture. */
+  public synchronized void onWriteFailed() {
+    sampled = false;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.US, "available %dMB, %.3f bytes/pixel, %.1fMB/s",
+        (sampledAvailableBytes - bytesWrittenSinceSample) / (1024 * 1024), bytesPerPixel,
+        bytesPerSecond / (1024 * 1024));
+  }
+
+  private long getAvailableBytes() {
+    long nowNs = System.nanoTime();
+    if (!sampled || nowNs - sampleTimeNs >= sampleIntervalMs * 1000000) {
+      sampledAvailableBytes = availableBytesSupplier.getAsLong();
+      sampleTimeNs = nowNs;
+      sampled = true;
+      bytesWrittenSinceSample = 0;
+    }
+    return sampledAvailableBytes - bytesWrittenSinceSample;
+  }
+}
@@ -17,6 +17,8 @@ limitations under the License.
 package com.google.android.imaging.pixelvisualcorecamera.common;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.view.Gravity;
 import android.widget.Toast;
@@ -36,9 +38,16 @@ public final class Toasts {
   private static String lastMessage;
 
   /**
+   * May be called from any thread, the toast is shown on the main thread.
+   *
    * @param duration must be LENGTH_SHORT or LENGTH_LONG
    */
   public static void showToast(Context context, String message, int duration) {
+    if (Looper.myLooper() != Looper.getMainLooper()) {
+      String finalMessage = message;
+      new Handler(Looper.getMainLooper()).post(() -> showToast(context, finalMessage, duration));
+      return;
+    }
     long currentTime = SystemClock.elapsedRealtime();
     if (currentTime < lastToastEndTime) {
       message = message + "\n" + lastMessage;
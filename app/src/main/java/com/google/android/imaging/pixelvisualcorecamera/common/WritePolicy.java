@@ -0,0 +1,106 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import java.util.Objects;
+
+/**
+ * How saved images are written, see FileSystem#setWritePolicy. Has no framework dependencies.
+ *
+ * <p>An atomic write goes to a hidden temp file that is renamed to the final name once complete,
+ * so the gallery never sees a truncated jpeg, even if the process is killed mid-write. The
+ * durability decides how much a power loss or kernel crash may take: files not yet synced to
+ * storage may be lost or empty afterwards.
+ */
+public final class WritePolicy {
+
+  /** When written files are synced to storage. */
+  public enum Durability {
+    /** Never sync; the kernel writes the data back eventually. */
+    NONE,
+    /** Sync every file before it is renamed, and the directory after. */
+    FSYNC_EACH,
+    /**
+     * Sync the files written since the last commit, and their directory, every
+     * groupCommitFiles files or groupCommitIntervalMs after the first uncommitted file.
+     */
+    GROUP_COMMIT
+  }
+
+  final boolean atomic;
+  final Durability durability;
+  final int groupCommitFiles;
+  final long groupCommitIntervalMs;
+
+  private WritePolicy(
+      boolean atomic, Durability durability, int groupCommitFiles, long groupCommitIntervalMs) {
+    this.atomic = atomic;
+    this.durability = durability;
+    this.groupCommitFiles = groupCommitFiles;
+    this.groupCommitIntervalMs = groupCommitIntervalMs;
+  }
+
+  /** Writes straight into the final file, without syncing. */
+  public static WritePolicy direct() {
+    return new WritePolicy(/*atomic*/ false, Durability.NONE, 0, 0);
+  }
+
+  /** Writes atomically, without syncing. */
+  public static WritePolicy atomic() {
+    return new WritePolicy(/*atomic*/ true, Durability.NONE, 0, 0);
+  }
+
+  /** Writes atomically, syncing every file. */
+  public static WritePolicy atomicFsyncEach() {
+    return new WritePolicy(/*atomic*/ true, Durability.FSYNC_EACH, 0, 0);
+  }
+
+  /** Writes atomically, syncing every maxFiles files or intervalMs, whichever comes first. */
+  public static WritePolicy atomicGroupCommit(int maxFiles, long intervalMs) {
+    if (maxFiles < 1 || intervalMs < 0) {
+      throw new IllegalArgumentException(
+          "Invalid group commit: " + maxFiles + " files, " + intervalMs + "ms");
+    }
+    return new WritePolicy(/*atomic*/ true, Durability.GROUP_COMMIT, maxFiles, intervalMs);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof WritePolicy)) {
+      return false;
+    }
+    WritePolicy other = (WritePolicy) o;
+    return atomic == other.atomic
+        && durability == other.durability
+        && groupCommitFiles == other.groupCommitFiles
+        && groupCommitIntervalMs == other.groupCommitIntervalMs;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(atomic, durability, groupCommitFiles, groupCommitIntervalMs);
+  }
+
+  @Override
+  public String toString() {
+    String s = (atomic ? "atomic" : "direct") + ", " + durability;
+    if (durability == Durability.GROUP_COMMIT) {
+      s += " (" + groupCommitFiles + " files / " + groupCommitIntervalMs + "ms)";
+    }
+    return s;
+  }
+}
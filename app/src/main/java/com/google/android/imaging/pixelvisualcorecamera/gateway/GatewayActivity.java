@@ -31,13 +31,25 @@ public final class GatewayActivity extends Activity {
 
   private static final int REQUEST_CODE = 1;
 
+  /**
+   * Optional launch extra that sets how saved images are written, e.g.
+   * {@code adb shell am start -n <package>/.gateway.GatewayActivity --es write_policy fsync_each}.
+   * See Preferences#setWritePolicyName.
+   */
+  private static final String EXTRA_WRITE_POLICY = "write_policy";
+
   private AppPermissions appPermissions;
   private boolean isModeApi1;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    isModeApi1 = new Preferences(this).isModeApi1();
+    Preferences preferences = new Preferences(this);
+    String writePolicy = getIntent().getStringExtra(EXTRA_WRITE_POLICY);
+    if (writePolicy != null) {
+      preferences.setWritePolicyName(writePolicy);
+    }
+    isModeApi1 = preferences.isModeApi1();
     appPermissions = new AppPermissions(this);
     if (appPermissions.checkPermissions()) {
       startCameraActivity();
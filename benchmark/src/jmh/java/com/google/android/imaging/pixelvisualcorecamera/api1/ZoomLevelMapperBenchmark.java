@@ -0,0 +1,56 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api1;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Both routines run for every scale event of a pinch zoom gesture. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ZoomLevelMapperBenchmark {
+
+  private static final int MAX_ZOOM = 99;
+
+  private final int[] zoomRatios = new int[MAX_ZOOM + 1];
+  private float span = 100;
+  private int zoomLevel;
+
+  public ZoomLevelMapperBenchmark() {
+    for (int i = 0; i <= MAX_ZOOM; i++) {
+      zoomRatios[i] = 100 + i * 7;
+    }
+  }
+
+  @Benchmark
+  public int getZoomLevel() {
+    span = (span > 900) ? 100 : span + 3.5f;
+    return ZoomLevelMapper.getZoomLevel(10, 100, span, MAX_ZOOM);
+  }
+
+  @Benchmark
+  public String formatZoomRatio() {
+    zoomLevel = (zoomLevel == MAX_ZOOM) ? 0 : zoomLevel + 1;
+    return ZoomLevelMapper.formatZoomRatio(zoomRatios[zoomLevel]);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import android.graphics.Rect;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The crop region is set on the preview request for every zoom change, up to once per frame.
+ * Compares computing the region with the lookup Camera2Controller#setCropRegion does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CropRegionBenchmark {
+
+  // Pixel 2 rear camera.
+  private static final int ACTIVE_ARRAY_WIDTH = 4032;
+  private static final int ACTIVE_ARRAY_HEIGHT = 3024;
+  private static final double MAX_ZOOM = 8.0;
+
+  private final int[] region = new int[4];
+  private CropRegionTable table;
+  private double zoom = 1.0;
+
+  @Setup
+  public void setUp() {
+    table = new CropRegionTable(ACTIVE_ARRAY_WIDTH, ACTIVE_ARRAY_HEIGHT, MAX_ZOOM);
+  }
+
+  /** Sweeps the zoom range like a pinch gesture. */
+  private double nextZoom() {
+    zoom += 0.013;
+    if (zoom > MAX_ZOOM) {
+      zoom = 1.0;
+    }
+    return zoom;
+  }
+
+  @Benchmark
+  public int[] computeCropRegion() {
+    CropRegionTable.computeCropRegion(ACTIVE_ARRAY_WIDTH, ACTIVE_ARRAY_HEIGHT, nextZoom(), region);
+    return region;
+  }
+
+  @Benchmark
+  public Rect lookUpCropRegion() {
+    return table.get(nextZoom());
+  }
+
+  @Benchmark
+  public CropRegionTable buildTable() {
+    return new CropRegionTable(ACTIVE_ARRAY_WIDTH, ACTIVE_ARRAY_HEIGHT, MAX_ZOOM);
+  }
+}
@@ -0,0 +1,53 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Orientation is computed each time the display rotates and for every capture. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OrientationBenchmark {
+
+  @Param({"false", "true"})
+  public boolean lensFacingFront;
+
+  @Param({"90", "270"})
+  public int sensorOrientation;
+
+  private int rotation;
+
+  @Benchmark
+  public int getOutputOrientation() {
+    rotation = (rotation + 1) & 3;
+    return Orientation.getOutputOrientation(lensFacingFront, rotation, sensorOrientation);
+  }
+
+  @Benchmark
+  public int getPreviewOrientation() {
+    rotation = (rotation + 1) & 3;
+    return Orientation.getPreviewOrientation(lensFacingFront, rotation, sensorOrientation);
+  }
+}
@@ -0,0 +1,47 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** A file name is generated for every saved image, hundreds in a row for a burst. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OutputFileNamerBenchmark {
+
+  private final OutputFileNamer namer =
+      new OutputFileNamer(new File("/sdcard/Pictures/PixelVisualCoreCamera"));
+
+  /** As FileSystem#saveImage names its output file. */
+  @Benchmark
+  public File newFile() {
+    return new File(namer.newPath(System.currentTimeMillis(), /*isApi1*/ false));
+  }
+
+  @Benchmark
+  public String newPath() {
+    return namer.newPath(System.currentTimeMillis(), /*isApi1*/ false);
+  }
+}
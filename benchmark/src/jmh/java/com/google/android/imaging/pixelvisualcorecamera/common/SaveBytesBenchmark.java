@@ -0,0 +1,126 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The write path of FileSystem#saveImage. The image arrives in a direct buffer, like an Image
+ * plane; it is either written as is, or first copied to the heap as the API 2 activity does
+ * before handing it to the saver thread. The atomic variants go through a temp file and a rename,
+ * with each durability of WritePolicy.
+ *
+ * <p>Writes go to tmpfs by default so that the result tracks the cost of the code path rather
+ * than the disk. Pass -p directory=... to measure another file system.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SaveBytesBenchmark {
+
+  @Param({"/dev/shm"})
+  public String directory;
+
+  @Param({"3145728"})
+  public int jpegSizeBytes;
+
+  private static final ImageFileWriter.Listener NO_OP_LISTENER = new ImageFileWriter.Listener() {
+    @Override
+    public void onFileWritten(File file, long writeNs, long syncNs) {}
+
+    @Override
+    public void onGroupCommitted(int fileCount, long syncNs) {}
+
+    @Override
+    public void onGroupCommitFailed(IOException e) {}
+  };
+
+  private ByteBuffer jpeg;
+  private File outputFile;
+  private ImageFileWriter atomicWriter;
+  private ImageFileWriter fsyncEachWriter;
+  private ImageFileWriter groupCommitWriter;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    byte[] data = new byte[jpegSizeBytes];
+    new Random(1).nextBytes(data);
+    jpeg = ByteBuffer.allocateDirect(jpegSizeBytes);
+    jpeg.put(data).flip();
+    outputFile = File.createTempFile("IMG_", ".jpg", new File(directory));
+    atomicWriter = new ImageFileWriter(WritePolicy.atomic(), NO_OP_LISTENER);
+    fsyncEachWriter = new ImageFileWriter(WritePolicy.atomicFsyncEach(), NO_OP_LISTENER);
+    // As configured by FileSystem.
+    groupCommitWriter =
+        new ImageFileWriter(WritePolicy.atomicGroupCommit(8, 1000), NO_OP_LISTENER);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    groupCommitWriter.commit();
+    if (!outputFile.delete()) {
+      System.err.println("failed to delete " + outputFile);
+    }
+  }
+
+  @Benchmark
+  public File writeDirect() throws IOException {
+    ImageFileWriter.write(outputFile, jpeg.duplicate());
+    return outputFile;
+  }
+
+  @Benchmark
+  public File copyAndWrite() throws IOException {
+    ByteBuffer source = jpeg.duplicate();
+    ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+    copy.put(source).flip();
+    ImageFileWriter.write(outputFile, copy);
+    return outputFile;
+  }
+
+  @Benchmark
+  public File atomic() throws IOException {
+    atomicWriter.save(outputFile, jpeg.duplicate());
+    return outputFile;
+  }
+
+  @Benchmark
+  public File atomicFsyncEach() throws IOException {
+    fsyncEachWriter.save(outputFile, jpeg.duplicate());
+    return outputFile;
+  }
+
+  @Benchmark
+  public File atomicGroupCommit() throws IOException {
+    groupCommitWriter.save(outputFile, jpeg.duplicate());
+    return outputFile;
+  }
+}
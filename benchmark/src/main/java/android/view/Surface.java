@@ -0,0 +1,27 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package android.view;
+
+/** Benchmark shim holding the display rotation constants of the framework class. */
+public final class Surface {
+  public static final int ROTATION_0 = 0;
+  public static final int ROTATION_90 = 1;
+  public static final int ROTATION_180 = 2;
+  public static final int ROTATION_270 = 3;
+
+  private Surface() {}
+}
@@ -0,0 +1,134 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_CAPTURE_COMPLETED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_PREVIEW_RESUMED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_SESSION_READY;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_STILL_CAPTURE_SUBMITTED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_STOP_REPEATING;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A model of the capture path of Camera1Controller and CameraApi1Activity. Camera1Controller
+ * calls android.hardware.Camera directly, so unlike the API 2 path it cannot be run here; this
+ * class follows its steps instead. Camera#takePicture stops the preview and captures a
+ * non-HDR+ still without an AF or AE trigger. The jpeg callback hands the picture to the saver
+ * and restarts the preview, and only then is the capture button enabled again: requests made
+ * while a picture is being taken are dropped, there is no capture queue.
+ *
+ * <p>The jpeg is delivered as a byte array, so no reader buffer is held while it is written.
+ */
+final class Camera1Simulation extends CaptureSimulation {
+
+  private boolean previewRunning;
+  private boolean stillCapturePending;
+  private int shotId;
+  private int picturesRequested;
+  private int picturesFinished;
+
+  Camera1Simulation(VirtualClock clock, VirtualCameraConfig cameraConfig,
+      long storageBytesPerSecond) {
+    super(clock, cameraConfig, storageBytesPerSecond);
+  }
+
+  @Override
+  void start() {
+    startPreview();
+  }
+
+  /** Only single shots are supported by the API 1 activity. */
+  @Override
+  boolean offerCapture(int shotType, int frameCount) {
+    if (shotType != CaptureRequestQueue.SHOT_SINGLE || frameCount != 1) {
+      throw new IllegalArgumentException("API 1 takes single shots only");
+    }
+    if (!previewRunning) {
+      return false;
+    }
+    takePicture();
+    return true;
+  }
+
+  @Override
+  boolean isIdle() {
+    return previewRunning && picturesFinished == picturesRequested
+        && getImagesSaved() + getFramesFailed() == picturesRequested;
+  }
+
+  /** As Camera1Controller#takePicture. */
+  private void takePicture() {
+    previewRunning = false;
+    picturesRequested++;
+    onShotStarted();
+    shotId = shotLatencyRecorder.beginShot(clock.nanoTime());
+    camera.stopRepeating();
+    shotLatencyRecorder.mark(shotId, STAGE_STOP_REPEATING);
+    stillCapturePending = true;
+  }
+
+  @Override
+  void onSessionReady() {
+    if (!stillCapturePending) {
+      return;
+    }
+    stillCapturePending = false;
+    shotLatencyRecorder.mark(shotId, STAGE_SESSION_READY);
+    camera.captureBurst(1, /*hdrPlus*/ false, stillCallback);
+    shotLatencyRecorder.mark(shotId, STAGE_STILL_CAPTURE_SUBMITTED);
+    shotLatencyRecorder.expectImage(shotId);
+  }
+
+  /** As the jpeg callback of CameraApi1Activity. */
+  @Override
+  void onImageAvailable(ByteBuffer jpeg, long timestampNs) {
+    shotLatencyRecorder.markImageAvailable();
+    camera.releaseImage();
+    saveImage(jpeg, () -> {});
+    finishPicture();
+  }
+
+  private final VirtualCamera.CaptureCallback stillCallback = new VirtualCamera.CaptureCallback() {
+
+    @Override
+    public void onCaptureCompleted(int afState, int aeState) {
+      shotLatencyRecorder.mark(shotId, STAGE_CAPTURE_COMPLETED);
+    }
+
+    /** Stands in for a camera error during the capture; no jpeg callback follows. */
+    @Override
+    public void onCaptureFailed() {
+      shotLatencyRecorder.markImageFailed(shotId);
+      finishPicture();
+    }
+  };
+
+  /** Restarts the preview, which enables the capture button again. */
+  private void finishPicture() {
+    picturesFinished++;
+    startPreview();
+    shotLatencyRecorder.mark(shotId, STAGE_PREVIEW_RESUMED);
+    shotLatencyRecorder.endCapture(shotId);
+    onCaptureFinished();
+  }
+
+  private void startPreview() {
+    camera.setRepeatingRequest((afState, aeState) -> { });
+    previewRunning = true;
+  }
+}
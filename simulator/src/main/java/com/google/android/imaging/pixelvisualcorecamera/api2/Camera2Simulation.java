@@ -0,0 +1,120 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs the app's StillCaptureSequence, the capture path of Camera2Controller, with its requests
+ * issued to the virtual camera. Images are held, and their reader buffers with them, until
+ * they have been written, as CameraApi2Activity does with owned images.
+ */
+final class Camera2Simulation extends CaptureSimulation {
+
+  private final CaptureRequestQueue captureQueue;
+  private final StillCaptureSequence captureSequence;
+  private int framesSubmitted;
+  private int framesFailed;
+
+  /** @param queueDepth the depth of the capture request queue */
+  Camera2Simulation(VirtualClock clock, VirtualCameraConfig cameraConfig,
+      long storageBytesPerSecond, int queueDepth) {
+    super(clock, cameraConfig, storageBytesPerSecond);
+    captureQueue = new CaptureRequestQueue(queueDepth, /*coalesce*/ false, clock);
+    captureSequence = new StillCaptureSequence(
+        new StillCaptureSequence.Session() {
+
+          @Override
+          public void triggerAutoFocus() {
+            // Each shot, including the second half of a double shot, starts by locking focus.
+            onShotStarted();
+            camera.captureAfTrigger(previewCallback);
+          }
+
+          @Override
+          public void triggerPrecapture() {
+            camera.capturePrecaptureTrigger(previewCallback);
+          }
+
+          @Override
+          public void stopRepeating() {
+            camera.stopRepeating();
+          }
+
+          @Override
+          public boolean captureStill(int frameCount, boolean zsl) {
+            camera.captureBurst(frameCount, zsl, stillCallback);
+            framesSubmitted += frameCount;
+            return true;
+          }
+
+          @Override
+          public void resumePreview() {
+            camera.captureAfCancel(previewCallback);
+            camera.setRepeatingRequest(previewCallback);
+            onCaptureFinished();
+          }
+        }, captureQueue, shotLatencyRecorder, clock);
+  }
+
+  @Override
+  void start() {
+    camera.setRepeatingRequest(previewCallback);
+  }
+
+  @Override
+  boolean offerCapture(int shotType, int frameCount) {
+    return captureSequence.requestCapture(shotType, frameCount, clock.nanoTime());
+  }
+
+  @Override
+  boolean isIdle() {
+    return !captureSequence.isCaptureInProgress() && captureQueue.getDepth() == 0
+        && getImagesSaved() + framesFailed == framesSubmitted;
+  }
+
+  @Override
+  void onSessionReady() {
+    captureSequence.onSessionReady();
+  }
+
+  @Override
+  void onImageAvailable(ByteBuffer jpeg, long timestampNs) {
+    shotLatencyRecorder.markImageAvailable();
+    saveImage(jpeg, camera::releaseImage);
+  }
+
+  private final VirtualCamera.CaptureCallback previewCallback = this::onPreviewResult;
+
+  private void onPreviewResult(int afState, int aeState) {
+    captureSequence.onPreviewResult(afState, aeState);
+  }
+
+  private final VirtualCamera.CaptureCallback stillCallback = new VirtualCamera.CaptureCallback() {
+
+    @Override
+    public void onCaptureCompleted(int afState, int aeState) {
+      captureSequence.onStillFrameCompleted();
+    }
+
+    @Override
+    public void onCaptureFailed() {
+      framesFailed++;
+      captureSequence.onStillFrameFailed();
+    }
+  };
+}
@@ -0,0 +1,199 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A capture pipeline run against a {@link VirtualCamera}: the capture path of one of the
+ * controllers, and a single saver writing images to storage of fixed bandwidth. Shot latencies
+ * are collected with the app's ShotLatencyRecorder.
+ *
+ * <p>Everything runs on the events of the {@link VirtualClock}; there are no threads.
+ */
+abstract class CaptureSimulation {
+
+  final VirtualClock clock;
+  final VirtualCamera camera;
+  final ShotLatencyRecorder shotLatencyRecorder;
+
+  private final long storageBytesPerSecond;
+  private final List<ShotLatencyRecord> records = new ArrayList<>();
+  private Runnable onCaptureFinished;
+
+  private int capturesRequested;
+  private int capturesDropped;
+  private int capturesCompleted;
+  private int shotsStarted;
+  private long firstRequestTimeNs = -1;
+  private long lastSaveTimeNs = -1;
+  private int imagesSaved;
+  private long bytesSaved;
+  private long storageBusyNs;
+  private long storageFreeTimeNs;
+  private int saveBacklog;
+  private int maxSaveBacklog;
+
+  /** @param storageBytesPerSecond the sustained write bandwidth of the storage */
+  CaptureSimulation(VirtualClock clock, VirtualCameraConfig cameraConfig,
+      long storageBytesPerSecond) {
+    if (storageBytesPerSecond <= 0) {
+      throw new IllegalArgumentException("storage bandwidth must be positive");
+    }
+    this.clock = clock;
+    this.storageBytesPerSecond = storageBytesPerSecond;
+    camera = new VirtualCamera(clock, cameraConfig, this::onSessionReady, this::onImageAvailable);
+    shotLatencyRecorder = new ShotLatencyRecorder(clock);
+    shotLatencyRecorder.setListener(records::add);
+  }
+
+  /** Starts the preview. */
+  abstract void start();
+
+  /** Requests a capture, as the activity does when the capture button is pressed. */
+  final void requestCapture(int shotType, int frameCount) {
+    capturesRequested++;
+    if (firstRequestTimeNs < 0) {
+      firstRequestTimeNs = clock.nanoTime();
+    }
+    if (!offerCapture(shotType, frameCount)) {
+      capturesDropped++;
+    }
+  }
+
+  /** Hands a capture request to the controller. Returns false if it was not accepted. */
+  abstract boolean offerCapture(int shotType, int frameCount);
+
+  /** Returns true once no capture is queued or in progress and every image has been saved. */
+  abstract boolean isIdle();
+
+  /** Called on the camera's onReady. */
+  abstract void onSessionReady();
+
+  /** Called for each jpeg the camera delivers. */
+  abstract void onImageAvailable(ByteBuffer jpeg, long timestampNs);
+
+  /** Sets an action run each time a capture sequence has ended and the preview resumed. */
+  final void setOnCaptureFinished(Runnable onCaptureFinished) {
+    this.onCaptureFinished = onCaptureFinished;
+  }
+
+  /** Counts a shot begun by the controller, each shot is expected to be recorded or dropped. */
+  final void onShotStarted() {
+    shotsStarted++;
+  }
+
+  /** Counts a finished capture and runs the onCaptureFinished action once the caller is done. */
+  final void onCaptureFinished() {
+    capturesCompleted++;
+    if (onCaptureFinished != null) {
+      clock.schedule(0, onCaptureFinished);
+    }
+  }
+
+  /**
+   * Writes an image after those already queued, then marks it written and runs onSaved.
+   */
+  final void saveImage(ByteBuffer jpeg, Runnable onSaved) {
+    int size = jpeg.remaining();
+    long writeNs = size * TimeUnit.SECONDS.toNanos(1) / storageBytesPerSecond;
+    long writeDoneNs = Math.max(clock.nanoTime(), storageFreeTimeNs) + writeNs;
+    storageFreeTimeNs = writeDoneNs;
+    storageBusyNs += writeNs;
+    saveBacklog++;
+    maxSaveBacklog = Math.max(maxSaveBacklog, saveBacklog);
+    clock.scheduleAt(writeDoneNs, () -> {
+      saveBacklog--;
+      imagesSaved++;
+      bytesSaved += size;
+      lastSaveTimeNs = clock.nanoTime();
+      shotLatencyRecorder.markFileWritten();
+      onSaved.run();
+    });
+  }
+
+  List<ShotLatencyRecord> getRecords() {
+    return records;
+  }
+
+  int getCapturesRequested() {
+    return capturesRequested;
+  }
+
+  int getCapturesDropped() {
+    return capturesDropped;
+  }
+
+  /** Returns the number of capture sequences that ran to completion. */
+  int getCapturesCompleted() {
+    return capturesCompleted;
+  }
+
+  /** Returns the number of shots begun; a double shot counts as two. */
+  int getShotsStarted() {
+    return shotsStarted;
+  }
+
+  /** Returns the number of shots the recorder reported as dropped. */
+  int getShotsDropped() {
+    return shotLatencyRecorder.getDroppedShotCount();
+  }
+
+  /** Returns the time from the first capture request until the last image was saved. */
+  long getElapsedNs() {
+    return (lastSaveTimeNs < 0) ? 0 : lastSaveTimeNs - firstRequestTimeNs;
+  }
+
+  int getImagesSaved() {
+    return imagesSaved;
+  }
+
+  long getBytesSaved() {
+    return bytesSaved;
+  }
+
+  /** Returns the total time the storage spent writing. */
+  long getStorageBusyNs() {
+    return storageBusyNs;
+  }
+
+  /** Returns the largest number of images that were waiting for, or being, written. */
+  int getMaxSaveBacklog() {
+    return maxSaveBacklog;
+  }
+
+  long getFramesCaptured() {
+    return camera.getFramesCaptured();
+  }
+
+  long getFramesFailed() {
+    return camera.getFramesFailed();
+  }
+
+  /** Returns the number of still frames that waited for a free image buffer. */
+  long getBufferStallCount() {
+    return camera.getStallCount();
+  }
+
+  /** Returns the total time the sensor waited for a free image buffer. */
+  long getBufferStallNs() {
+    return camera.getStallNs();
+  }
+}
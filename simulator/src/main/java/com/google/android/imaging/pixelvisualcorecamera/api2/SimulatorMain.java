@@ -0,0 +1,315 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_FILE_WRITTEN;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_IMAGE_AVAILABLE;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_STILL_CAPTURE_SUBMITTED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.ShotLatencyRecord.STAGE_TAKE_PICTURE;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a capture workload against the virtual camera and reports shot throughput, shutter lag
+ * and save throughput. All times are virtual, so a given set of arguments always produces the
+ * same report.
+ *
+ * <p>The run fails if the workload does not drain, or if a shot is neither recorded nor reported
+ * as dropped by the ShotLatencyRecorder. Dropped shots, e.g., those with a failed frame, are
+ * reported with a warning.
+ *
+ * <pre>
+ * --api 1|2               the controller whose capture path is run (2)
+ * --shots N               captures to request (20)
+ * --shot-type TYPE        single, double or burst, API 1 takes single shots only (single)
+ * --burst-frames N        frames per burst (8)
+ * --interval-ms MS        time between requests, 0 to request when the previous one ended (0)
+ * --queue-depth N         depth of the capture request queue, API 2 only (4)
+ * --max-images N          maxImages of the jpeg ImageReader, API 2 only (9)
+ * --fail-rate P           probability that a still frame fails (0)
+ * --fps FPS               sensor frame rate (30)
+ * --af-ms MS              AF convergence time (200)
+ * --no-af-state           results carry no AF state
+ * --ae-precapture-ms MS   run an AE precapture sequence of this length for each shot
+ * --hdrplus-ms MS         HDR+ processing latency (800)
+ * --jpeg-encode-ms MS     non-HDR+ jpeg latency (60)
+ * --jpeg-kb KB            jpeg size (3072)
+ * --storage-mbps MB       storage write bandwidth in MB/s (100)
+ * --seed N                seed of the jpeg payloads (1)
+ * </pre>
+ */
+public final class SimulatorMain {
+
+  /** Gives up if the workload has not drained after this much virtual time. */
+  private static final long TIMEOUT_NS = TimeUnit.HOURS.toNanos(1);
+
+  private int api = 2;
+  private int shots = 20;
+  private int shotType = CaptureRequestQueue.SHOT_SINGLE;
+  private int burstFrames = 8;
+  private long intervalNs;
+  private int queueDepth = 4;
+  private long storageBytesPerSecond = 100L * 1000 * 1000;
+  private final VirtualCameraConfig cameraConfig = new VirtualCameraConfig();
+
+  private int capturesIssued;
+
+  public static void main(String[] args) {
+    SimulatorMain simulator = new SimulatorMain();
+    try {
+      simulator.parseArgs(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+    }
+    System.exit(simulator.run() ? 0 : 1);
+  }
+
+  private void parseArgs(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--no-af-state")) {
+        cameraConfig.afStateReported(false);
+        continue;
+      }
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("missing value for " + arg);
+      }
+      String value = args[++i];
+      switch (arg) {
+        case "--api":
+          api = parseApi(value);
+          break;
+        case "--shots":
+          shots = parsePositiveInt(arg, value);
+          break;
+        case "--shot-type":
+          shotType = parseShotType(value);
+          break;
+        case "--burst-frames":
+          burstFrames = parsePositiveInt(arg, value);
+          break;
+        case "--interval-ms":
+          intervalNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+          break;
+        case "--queue-depth":
+          queueDepth = parsePositiveInt(arg, value);
+          break;
+        case "--max-images":
+          cameraConfig.maxImages(parsePositiveInt(arg, value));
+          break;
+        case "--fail-rate":
+          cameraConfig.stillFailureRate(Double.parseDouble(value));
+          break;
+        case "--fps":
+          cameraConfig.frameRate(Double.parseDouble(value));
+          break;
+        case "--af-ms":
+          cameraConfig.afConvergence(Long.parseLong(value), TimeUnit.MILLISECONDS);
+          break;
+        case "--ae-precapture-ms":
+          cameraConfig.aeConverged(false)
+              .aePrecapture(Long.parseLong(value), TimeUnit.MILLISECONDS);
+          break;
+        case "--hdrplus-ms":
+          cameraConfig.hdrPlusLatency(Long.parseLong(value), TimeUnit.MILLISECONDS);
+          break;
+        case "--jpeg-encode-ms":
+          cameraConfig.jpegEncodeLatency(Long.parseLong(value), TimeUnit.MILLISECONDS);
+          break;
+        case "--jpeg-kb":
+          cameraConfig.jpegSize(parsePositiveInt(arg, value) * 1024);
+          break;
+        case "--storage-mbps":
+          storageBytesPerSecond = parsePositiveInt(arg, value) * 1000L * 1000;
+          break;
+        case "--seed":
+          cameraConfig.seed(Long.parseLong(value));
+          break;
+        default:
+          throw new IllegalArgumentException("unknown argument " + arg);
+      }
+    }
+    if (api == 1 && shotType != CaptureRequestQueue.SHOT_SINGLE) {
+      throw new IllegalArgumentException("API 1 takes single shots only");
+    }
+  }
+
+  private static int parseApi(String value) {
+    switch (value) {
+      case "1":
+        return 1;
+      case "2":
+        return 2;
+      default:
+        throw new IllegalArgumentException("unknown api " + value);
+    }
+  }
+
+  private static int parsePositiveInt(String arg, String value) {
+    int result = Integer.parseInt(value);
+    if (result < 1) {
+      throw new IllegalArgumentException(arg + " must be positive");
+    }
+    return result;
+  }
+
+  private static int parseShotType(String value) {
+    switch (value) {
+      case "single":
+        return CaptureRequestQueue.SHOT_SINGLE;
+      case "double":
+        return CaptureRequestQueue.SHOT_DOUBLE;
+      case "burst":
+        return CaptureRequestQueue.SHOT_BURST;
+      default:
+        throw new IllegalArgumentException("unknown shot type " + value);
+    }
+  }
+
+  /**
+   * Runs the workload and prints the report. Returns false if the workload did not drain or
+   * shots are missing from the report.
+   */
+  private boolean run() {
+    VirtualClock clock = new VirtualClock();
+    CaptureSimulation simulation = (api == 1)
+        ? new Camera1Simulation(clock, cameraConfig, storageBytesPerSecond)
+        : new Camera2Simulation(clock, cameraConfig, storageBytesPerSecond, queueDepth);
+    simulation.start();
+    if (intervalNs > 0) {
+      for (int i = 0; i < shots; i++) {
+        clock.schedule(i * intervalNs, () -> issueCapture(simulation));
+      }
+    } else {
+      simulation.setOnCaptureFinished(() -> {
+        if (capturesIssued < shots) {
+          issueCapture(simulation);
+        }
+      });
+      issueCapture(simulation);
+    }
+
+    long deadlineNs = clock.nanoTime() + TIMEOUT_NS;
+    while (capturesIssued < shots || !simulation.isIdle()) {
+      if (clock.nanoTime() > deadlineNs || !clock.runNext()) {
+        System.out.println("workload did not drain, captures issued: " + capturesIssued);
+        report(simulation);
+        return false;
+      }
+    }
+    report(simulation);
+    return checkShotsAccountedFor(simulation);
+  }
+
+  /**
+   * Warns about shots missing from the latency report. Returns false if a shot was lost, i.e.,
+   * neither recorded nor reported as dropped.
+   */
+  private static boolean checkShotsAccountedFor(CaptureSimulation simulation) {
+    int recorded = simulation.getRecords().size();
+    int dropped = simulation.getShotsDropped();
+    int lost = simulation.getShotsStarted() - recorded - dropped;
+    if (dropped > 0) {
+      System.out.println("warning: " + dropped + " shots dropped, latencies cover "
+          + recorded + " of " + simulation.getShotsStarted() + " shots");
+    }
+    if (lost > 0) {
+      System.out.println("error: " + lost + " shots neither recorded nor dropped");
+      return false;
+    }
+    return true;
+  }
+
+  private void issueCapture(CaptureSimulation simulation) {
+    capturesIssued++;
+    int frameCount = (shotType == CaptureRequestQueue.SHOT_BURST) ? burstFrames : 1;
+    simulation.requestCapture(shotType, frameCount);
+  }
+
+  private static void report(CaptureSimulation simulation) {
+    List<ShotLatencyRecord> records = simulation.getRecords();
+    double elapsedSeconds = simulation.getElapsedNs() / 1e9;
+
+    print("captures requested", simulation.getCapturesRequested());
+    print("captures dropped", simulation.getCapturesDropped());
+    print("captures completed", simulation.getCapturesCompleted());
+    print("images saved", simulation.getImagesSaved());
+    print("sensor frames", simulation.getFramesCaptured());
+    print("failed frames", simulation.getFramesFailed());
+    print("buffer stalls", simulation.getBufferStallCount());
+    print("buffer stall (ms)", simulation.getBufferStallNs() / 1e6);
+    print("elapsed (s)", elapsedSeconds);
+    print("shots/s", perSecond(simulation.getCapturesCompleted(), elapsedSeconds));
+    print("images/s", perSecond(simulation.getImagesSaved(), elapsedSeconds));
+    print("shots started", simulation.getShotsStarted());
+    print("shots recorded", records.size());
+    print("shots dropped", simulation.getShotsDropped());
+    printLatency(records, "shutter lag", STAGE_TAKE_PICTURE, STAGE_STILL_CAPTURE_SUBMITTED);
+    printLatency(records, "shot to image", STAGE_TAKE_PICTURE, STAGE_IMAGE_AVAILABLE);
+    printLatency(records, "shot to file", STAGE_TAKE_PICTURE, STAGE_FILE_WRITTEN);
+    double megabytes = simulation.getBytesSaved() / 1e6;
+    print("saved (MB)", megabytes);
+    print("save throughput (MB/s)", perSecond(megabytes, elapsedSeconds));
+    print("storage utilization", perSecond(simulation.getStorageBusyNs() / 1e9, elapsedSeconds));
+    print("max save backlog", simulation.getMaxSaveBacklog());
+  }
+
+  private static double perSecond(double value, double seconds) {
+    return (seconds > 0) ? value / seconds : 0;
+  }
+
+  /** Prints the mean, median, 95th percentile and maximum of a stage duration in ms. */
+  private static void printLatency(
+      List<ShotLatencyRecord> records, String name, int fromStage, int toStage) {
+    long[] durations = new long[records.size()];
+    int count = 0;
+    for (ShotLatencyRecord record : records) {
+      long duration = record.getDurationNanos(fromStage, toStage);
+      if (duration >= 0) {
+        durations[count++] = duration;
+      }
+    }
+    if (count == 0) {
+      System.out.println(String.format(Locale.US, "%-24s n/a", name + " (ms)"));
+      return;
+    }
+    durations = Arrays.copyOf(durations, count);
+    Arrays.sort(durations);
+    long sum = 0;
+    for (long duration : durations) {
+      sum += duration;
+    }
+    System.out.println(String.format(Locale.US,
+        "%-24s mean %.1f  p50 %.1f  p95 %.1f  max %.1f", name + " (ms)",
+        sum / 1e6 / count,
+        durations[(count - 1) / 2] / 1e6,
+        durations[(int) Math.ceil(count * 0.95) - 1] / 1e6,
+        durations[count - 1] / 1e6));
+  }
+
+  private static void print(String name, long value) {
+    System.out.println(String.format(Locale.US, "%-24s %d", name, value));
+  }
+
+  private static void print(String name, double value) {
+    System.out.println(String.format(Locale.US, "%-24s %.2f", name, value));
+  }
+}
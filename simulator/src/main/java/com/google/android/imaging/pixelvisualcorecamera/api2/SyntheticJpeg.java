@@ -0,0 +1,69 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Creates jpeg payloads of a given size: a JFIF header followed by comment segments of random
+ * filler. The marker structure is valid, so the payloads pass through code that inspects jpeg
+ * headers, but they carry no image data.
+ */
+final class SyntheticJpeg {
+
+  /** SOI, APP0 and EOI. */
+  static final int MIN_SIZE = 2 + 18 + 2;
+
+  private static final int MAX_SEGMENT_PAYLOAD = 0xFFFF - 2;
+
+  private static final byte[] SOI_APP0 = new byte[]{
+      (byte) 0xFF, (byte) 0xD8,
+      (byte) 0xFF, (byte) 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00,
+      0x01, 0x01, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00
+  };
+
+  private SyntheticJpeg() {}
+
+  /** Returns a read-only buffer of exactly sizeBytes, positioned at 0. */
+  static ByteBuffer create(int sizeBytes, Random random) {
+    if (sizeBytes < MIN_SIZE) {
+      throw new IllegalArgumentException("jpeg size must be at least " + MIN_SIZE);
+    }
+    ByteBuffer jpeg = ByteBuffer.allocate(sizeBytes);
+    jpeg.put(SOI_APP0);
+    byte[] filler = new byte[MAX_SEGMENT_PAYLOAD];
+    int remaining = sizeBytes - MIN_SIZE;
+    while (remaining > 0) {
+      // A segment needs at least its marker and length; pad a short tail with fill bytes.
+      if (remaining < 4) {
+        for (int i = 0; i < remaining; i++) {
+          jpeg.put((byte) 0xFF);
+        }
+        break;
+      }
+      int payload = Math.min(remaining - 4, MAX_SEGMENT_PAYLOAD);
+      random.nextBytes(filler);
+      jpeg.put((byte) 0xFF).put((byte) 0xFE).putShort((short) (payload + 2));
+      jpeg.put(filler, 0, payload);
+      remaining -= payload + 4;
+    }
+    jpeg.put((byte) 0xFF).put((byte) 0xD9);
+    jpeg.flip();
+    return jpeg.asReadOnlyBuffer();
+  }
+}
@@ -0,0 +1,291 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AE_STATE_CONVERGED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AE_STATE_PRECAPTURE;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AE_STATE_SEARCHING;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AF_STATE_ACTIVE_SCAN;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AF_STATE_FOCUSED_LOCKED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AF_STATE_PASSIVE_FOCUSED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.RESULT_STATE_UNKNOWN;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Stands in for the CameraDevice, CameraCaptureSession and ImageReader used by
+ * Camera2Controller. Requests are captured one per frame at the configured frame rate, queued
+ * single requests ahead of the repeating request. AF and AE converge after fixed delays from
+ * their triggers, and jpegs are produced by a single processing stage with a fixed latency.
+ *
+ * <p>As with an ImageReader, each still frame needs one of maxImages buffers, held from the
+ * start of the frame until the client calls #releaseImage. A still request that finds no free
+ * buffer stalls the sensor until an image is released.
+ */
+final class VirtualCamera {
+
+  /** Stand-in for CameraCaptureSession.CaptureCallback#onCaptureCompleted. */
+  interface CaptureCallback {
+    void onCaptureCompleted(int afState, int aeState);
+
+    /** Stand-in for CameraCaptureSession.CaptureCallback#onCaptureFailed. */
+    default void onCaptureFailed() {}
+  }
+
+  /** Stand-in for CameraCaptureSession.StateCallback#onReady. */
+  interface SessionListener {
+    void onReady();
+  }
+
+  /** Stand-in for ImageReader.OnImageAvailableListener. */
+  interface ImageListener {
+
+    /**
+     * @param jpeg a read-only view of the jpeg
+     * @param timestampNs the start of exposure of the frame, like Image#getTimestamp
+     */
+    void onImageAvailable(ByteBuffer jpeg, long timestampNs);
+  }
+
+  private static final int REQUEST_PREVIEW = 0;
+  private static final int REQUEST_AF_TRIGGER = 1;
+  private static final int REQUEST_AF_CANCEL = 2;
+  private static final int REQUEST_PRECAPTURE_TRIGGER = 3;
+  private static final int REQUEST_STILL = 4;
+
+  private static final class Request {
+    final int kind;
+    final boolean hdrPlus;
+    final CaptureCallback callback;
+
+    Request(int kind, boolean hdrPlus, CaptureCallback callback) {
+      this.kind = kind;
+      this.hdrPlus = hdrPlus;
+      this.callback = callback;
+    }
+  }
+
+  private final VirtualClock clock;
+  private final VirtualCameraConfig config;
+  private final long frameDurationNs;
+  private final ByteBuffer jpeg;
+  private final SessionListener sessionListener;
+  private final ImageListener imageListener;
+  private final Random failureRandom;
+
+  private final ArrayDeque<Request> pendingRequests = new ArrayDeque<>();
+  private Request repeatingRequest;
+  private boolean sensorRunning;
+  private long afTriggerTimeNs = -1;
+  private long precaptureTriggerTimeNs = -1;
+  private long processorFreeTimeNs;
+  private long framesCaptured;
+  private long framesFailed;
+  private int imagesInUse;
+  private long stallStartNs = -1;
+  private long stallCount;
+  private long stallNs;
+
+  VirtualCamera(VirtualClock clock, VirtualCameraConfig config,
+      SessionListener sessionListener, ImageListener imageListener) {
+    this.clock = clock;
+    this.config = config;
+    this.frameDurationNs = config.getFrameDurationNs();
+    this.jpeg = SyntheticJpeg.create(config.jpegSizeBytes, new Random(config.seed));
+    this.sessionListener = sessionListener;
+    this.imageListener = imageListener;
+    this.failureRandom = new Random(config.seed);
+  }
+
+  // ===============================================================================================
+  // Session
+  // ===============================================================================================
+
+  void setRepeatingRequest(CaptureCallback callback) {
+    repeatingRequest = new Request(REQUEST_PREVIEW, false, callback);
+    startSensor();
+  }
+
+  /** Frames already being exposed still complete; onReady follows once they have. */
+  void stopRepeating() {
+    repeatingRequest = null;
+  }
+
+  /** Submits a single preview request with an AF trigger. */
+  void captureAfTrigger(CaptureCallback callback) {
+    submit(new Request(REQUEST_AF_TRIGGER, false, callback));
+  }
+
+  /** Submits a single preview request that cancels AF. */
+  void captureAfCancel(CaptureCallback callback) {
+    submit(new Request(REQUEST_AF_CANCEL, false, callback));
+  }
+
+  /** Submits a single preview request with an AE precapture trigger. */
+  void capturePrecaptureTrigger(CaptureCallback callback) {
+    submit(new Request(REQUEST_PRECAPTURE_TRIGGER, false, callback));
+  }
+
+  /** Submits still requests for the jpeg output, captured on consecutive frames. */
+  void captureBurst(int frameCount, boolean hdrPlus, CaptureCallback callback) {
+    for (int i = 0; i < frameCount; i++) {
+      pendingRequests.addLast(new Request(REQUEST_STILL, hdrPlus, callback));
+    }
+    startSensor();
+  }
+
+  /**
+   * Returns the buffer of a delivered image to the reader, like Image#close. A stalled still
+   * request is captured on the next frame.
+   */
+  void releaseImage() {
+    if (imagesInUse == 0) {
+      throw new IllegalStateException("no image to release");
+    }
+    imagesInUse--;
+    if (stallStartNs >= 0) {
+      stallNs += clock.nanoTime() - stallStartNs;
+      stallStartNs = -1;
+      clock.schedule(0, this::startFrame);
+    }
+  }
+
+  long getFramesCaptured() {
+    return framesCaptured;
+  }
+
+  /** Returns the number of still frames that failed and produced no image. */
+  long getFramesFailed() {
+    return framesFailed;
+  }
+
+  /** Returns the number of still requests that had to wait for a free buffer. */
+  long getStallCount() {
+    return stallCount;
+  }
+
+  /** Returns the total time the sensor waited for a free buffer. */
+  long getStallNs() {
+    return stallNs;
+  }
+
+  private void submit(Request request) {
+    pendingRequests.addLast(request);
+    startSensor();
+  }
+
+  // ===============================================================================================
+  // Sensor
+  // ===============================================================================================
+
+  private void startSensor() {
+    if (!sensorRunning) {
+      sensorRunning = true;
+      clock.schedule(0, this::startFrame);
+    }
+  }
+
+  private void startFrame() {
+    Request request = pendingRequests.pollFirst();
+    if (request == null) {
+      request = repeatingRequest;
+    }
+    if (request == null) {
+      sensorRunning = false;
+      sessionListener.onReady();
+      return;
+    }
+    long frameStartNs = clock.nanoTime();
+    if (request.kind == REQUEST_STILL) {
+      if (imagesInUse >= config.maxImages) {
+        // Resumed by releaseImage.
+        pendingRequests.addFirst(request);
+        stallStartNs = frameStartNs;
+        stallCount++;
+        return;
+      }
+      imagesInUse++;
+    }
+    switch (request.kind) {
+      case REQUEST_AF_TRIGGER:
+        // As in CONTINUOUS_PICTURE mode, a trigger while locked is ignored.
+        if (afTriggerTimeNs < 0 || frameStartNs - afTriggerTimeNs < config.afConvergenceNs) {
+          afTriggerTimeNs = frameStartNs;
+        }
+        break;
+      case REQUEST_AF_CANCEL:
+        // The capture sequence is over, the next shot meters again.
+        afTriggerTimeNs = -1;
+        precaptureTriggerTimeNs = -1;
+        break;
+      case REQUEST_PRECAPTURE_TRIGGER:
+        precaptureTriggerTimeNs = frameStartNs;
+        break;
+      default:
+        break;
+    }
+    Request frameRequest = request;
+    clock.schedule(frameDurationNs, () -> endFrame(frameRequest, frameStartNs));
+  }
+
+  private void endFrame(Request request, long frameStartNs) {
+    framesCaptured++;
+    long frameEndNs = clock.nanoTime();
+    if (request.kind == REQUEST_STILL && failureRandom.nextDouble() < config.stillFailureRate) {
+      framesFailed++;
+      imagesInUse--;
+      request.callback.onCaptureFailed();
+      startFrame();
+      return;
+    }
+    if (request.kind == REQUEST_STILL) {
+      long latencyNs = request.hdrPlus ? config.hdrPlusLatencyNs : config.jpegEncodeNs;
+      long imageTimeNs = Math.max(frameEndNs, processorFreeTimeNs) + latencyNs;
+      processorFreeTimeNs = imageTimeNs;
+      clock.scheduleAt(imageTimeNs,
+          () -> imageListener.onImageAvailable(jpeg.duplicate(), frameStartNs));
+    }
+    request.callback.onCaptureCompleted(getAfState(frameEndNs), getAeState(frameEndNs));
+    startFrame();
+  }
+
+  private int getAfState(long timeNs) {
+    if (!config.afStateReported) {
+      return RESULT_STATE_UNKNOWN;
+    }
+    if (afTriggerTimeNs < 0) {
+      return AF_STATE_PASSIVE_FOCUSED;
+    }
+    return (timeNs - afTriggerTimeNs < config.afConvergenceNs)
+        ? AF_STATE_ACTIVE_SCAN : AF_STATE_FOCUSED_LOCKED;
+  }
+
+  private int getAeState(long timeNs) {
+    if (config.aeConverged) {
+      return AE_STATE_CONVERGED;
+    }
+    if (precaptureTriggerTimeNs < 0) {
+      return AE_STATE_SEARCHING;
+    }
+    // The frame carrying the trigger always reports the precapture state.
+    long precaptureNs = Math.max(config.aePrecaptureNs, frameDurationNs + 1);
+    return (timeNs - precaptureTriggerTimeNs < precaptureNs)
+        ? AE_STATE_PRECAPTURE : AE_STATE_CONVERGED;
+  }
+}
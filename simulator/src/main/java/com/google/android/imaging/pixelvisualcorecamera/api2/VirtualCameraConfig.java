@@ -0,0 +1,121 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.util.concurrent.TimeUnit;
+
+/** The timing and output characteristics of a {@link VirtualCamera}. */
+final class VirtualCameraConfig {
+
+  double frameRate = 30;
+  long afConvergenceNs = TimeUnit.MILLISECONDS.toNanos(200);
+  boolean afStateReported = true;
+  boolean aeConverged = true;
+  long aePrecaptureNs = TimeUnit.MILLISECONDS.toNanos(150);
+  long hdrPlusLatencyNs = TimeUnit.MILLISECONDS.toNanos(800);
+  long jpegEncodeNs = TimeUnit.MILLISECONDS.toNanos(60);
+  int jpegSizeBytes = 3 * 1024 * 1024;
+  // As configured by CameraApi2Activity: a full save queue plus the image being written.
+  int maxImages = 9;
+  double stillFailureRate;
+  long seed = 1;
+
+  /** The sensor frame rate; preview results and still frames are delivered at this rate. */
+  VirtualCameraConfig frameRate(double frameRate) {
+    if (frameRate <= 0) {
+      throw new IllegalArgumentException("frame rate must be positive");
+    }
+    this.frameRate = frameRate;
+    return this;
+  }
+
+  /** The time from the AF trigger until AF reports a locked state. */
+  VirtualCameraConfig afConvergence(long duration, TimeUnit unit) {
+    afConvergenceNs = unit.toNanos(duration);
+    return this;
+  }
+
+  /** If false, results carry no AF state, like a fixed focus camera. */
+  VirtualCameraConfig afStateReported(boolean afStateReported) {
+    this.afStateReported = afStateReported;
+    return this;
+  }
+
+  /**
+   * If true, AE is converged when focus locks and the precapture sequence is skipped. Otherwise
+   * each shot runs a precapture sequence of the given duration.
+   */
+  VirtualCameraConfig aeConverged(boolean aeConverged) {
+    this.aeConverged = aeConverged;
+    return this;
+  }
+
+  /** The time from the AE precapture trigger until AE has converged. */
+  VirtualCameraConfig aePrecapture(long duration, TimeUnit unit) {
+    aePrecaptureNs = unit.toNanos(duration);
+    return this;
+  }
+
+  /** The time from the end of an HDR+ frame until its jpeg is available. */
+  VirtualCameraConfig hdrPlusLatency(long duration, TimeUnit unit) {
+    hdrPlusLatencyNs = unit.toNanos(duration);
+    return this;
+  }
+
+  /** The time from the end of a non-HDR+ frame until its jpeg is available. */
+  VirtualCameraConfig jpegEncodeLatency(long duration, TimeUnit unit) {
+    jpegEncodeNs = unit.toNanos(duration);
+    return this;
+  }
+
+  /** The size of the synthetic jpeg payloads. */
+  VirtualCameraConfig jpegSize(int bytes) {
+    if (bytes < SyntheticJpeg.MIN_SIZE) {
+      throw new IllegalArgumentException("jpeg size must be at least " + SyntheticJpeg.MIN_SIZE);
+    }
+    jpegSizeBytes = bytes;
+    return this;
+  }
+
+  /** The maxImages of the jpeg ImageReader. */
+  VirtualCameraConfig maxImages(int maxImages) {
+    if (maxImages < 1) {
+      throw new IllegalArgumentException("max images must be positive");
+    }
+    this.maxImages = maxImages;
+    return this;
+  }
+
+  /** The probability that a still frame fails, reported by onCaptureFailed without an image. */
+  VirtualCameraConfig stillFailureRate(double stillFailureRate) {
+    if (stillFailureRate < 0 || stillFailureRate > 1) {
+      throw new IllegalArgumentException("failure rate must be between 0 and 1");
+    }
+    this.stillFailureRate = stillFailureRate;
+    return this;
+  }
+
+  /** Seeds the content of the synthetic jpegs and the frame failures. */
+  VirtualCameraConfig seed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  long getFrameDurationNs() {
+    return Math.round(TimeUnit.SECONDS.toNanos(1) / frameRate);
+  }
+}
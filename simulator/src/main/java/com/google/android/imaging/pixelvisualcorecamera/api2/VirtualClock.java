@@ -0,0 +1,83 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import java.util.PriorityQueue;
+
+/**
+ * A discrete event clock. Time only advances when the next scheduled event is run, so a
+ * simulation produces the same timings on every run, independent of the host.
+ */
+final class VirtualClock implements NanoClock {
+
+  /**
+   * The time at which the clock starts. Not zero, since a zero timestamp marks a stage that was
+   * not reached in ShotLatencyRecord.
+   */
+  static final long START_TIME_NS = 1_000_000_000L;
+
+  private static final class Event implements Comparable<Event> {
+    final long timeNs;
+    final long sequence;
+    final Runnable action;
+
+    Event(long timeNs, long sequence, Runnable action) {
+      this.timeNs = timeNs;
+      this.sequence = sequence;
+      this.action = action;
+    }
+
+    /** Orders by time; events scheduled for the same time run in the order they were added. */
+    @Override
+    public int compareTo(Event other) {
+      if (timeNs != other.timeNs) {
+        return Long.compare(timeNs, other.timeNs);
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final PriorityQueue<Event> events = new PriorityQueue<>();
+  private long nowNs = START_TIME_NS;
+  private long nextSequence;
+
+  @Override
+  public long nanoTime() {
+    return nowNs;
+  }
+
+  /** Schedules the action to run after the delay. */
+  void schedule(long delayNs, Runnable action) {
+    scheduleAt(nowNs + Math.max(delayNs, 0), action);
+  }
+
+  /** Schedules the action to run at the given time, or now if the time has passed. */
+  void scheduleAt(long timeNs, Runnable action) {
+    events.add(new Event(Math.max(timeNs, nowNs), nextSequence++, action));
+  }
+
+  /** Advances to the next event and runs it. Returns false if no event is scheduled. */
+  boolean runNext() {
+    Event event = events.poll();
+    if (event == null) {
+      return false;
+    }
+    nowNs = event.timeNs;
+    event.action.run();
+    return true;
+  }
+}
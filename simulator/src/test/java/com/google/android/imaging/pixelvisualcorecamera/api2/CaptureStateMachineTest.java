@@ -0,0 +1,184 @@
+/*
+Copyright 2018 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.google.android.imaging.pixelvisualcorecamera.api2;
+
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AE_STATE_CONVERGED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AE_STATE_FLASH_REQUIRED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AE_STATE_PRECAPTURE;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AE_STATE_SEARCHING;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AF_STATE_ACTIVE_SCAN;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AF_STATE_FOCUSED_LOCKED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.AF_STATE_NOT_FOCUSED_LOCKED;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.RESULT_STATE_UNKNOWN;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.STATE_PICTURE_TAKEN;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.STATE_PREVIEW;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.STATE_WAITING_LOCK;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.STATE_WAITING_NON_PRECAPTURE;
+import static com.google.android.imaging.pixelvisualcorecamera.api2.CaptureStateMachine.STATE_WAITING_PRECAPTURE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Drives the AF/AE transitions of CaptureStateMachine with synthetic results. */
+public class CaptureStateMachineTest {
+
+  private static final String PRECAPTURE = "precapture";
+  private static final String CAPTURE = "capture";
+
+  /** The actions taken by the state machine, in order. */
+  private final List<String> actions = new ArrayList<>();
+  private CaptureStateMachine stateMachine;
+
+  @Before
+  public void setUp() {
+    stateMachine = new CaptureStateMachine(new CaptureStateMachine.Actions() {
+
+      @Override
+      public void runPrecaptureSequence() {
+        actions.add(PRECAPTURE);
+      }
+
+      @Override
+      public void captureStillPicture() {
+        actions.add(CAPTURE);
+      }
+
+      @Override
+      public void onStateChanged(int oldState, int newState) {
+        actions.add(stateChange(oldState, newState));
+      }
+    });
+  }
+
+  @Test
+  public void previewIgnoresResults() {
+    assertFalse(stateMachine.isWaitingForResult());
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+    assertEquals(STATE_PREVIEW, stateMachine.getState());
+    assertTrue(actions.isEmpty());
+  }
+
+  @Test
+  public void lockedAndConverged_capturesRightAway() {
+    startCapture();
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+    assertEquals(STATE_PICTURE_TAKEN, stateMachine.getState());
+    assertFalse(stateMachine.isWaitingForResult());
+    assertActions(stateChange(STATE_WAITING_LOCK, STATE_PICTURE_TAKEN), CAPTURE);
+  }
+
+  @Test
+  public void lockedWithoutAeState_capturesRightAway() {
+    startCapture();
+    stateMachine.onResult(AF_STATE_NOT_FOCUSED_LOCKED, RESULT_STATE_UNKNOWN);
+    assertEquals(STATE_PICTURE_TAKEN, stateMachine.getState());
+    assertActions(stateChange(STATE_WAITING_LOCK, STATE_PICTURE_TAKEN), CAPTURE);
+  }
+
+  @Test
+  public void noAfState_capturesRightAway() {
+    startCapture();
+    stateMachine.onResult(RESULT_STATE_UNKNOWN, AE_STATE_SEARCHING);
+    assertEquals(STATE_PICTURE_TAKEN, stateMachine.getState());
+    assertActions(stateChange(STATE_WAITING_LOCK, STATE_PICTURE_TAKEN), CAPTURE);
+  }
+
+  @Test
+  public void scanning_waitsForLock() {
+    startCapture();
+    stateMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED);
+    assertEquals(STATE_WAITING_LOCK, stateMachine.getState());
+    assertTrue(stateMachine.isWaitingForResult());
+    assertTrue(actions.isEmpty());
+  }
+
+  @Test
+  public void lockedNotConverged_runsPrecaptureThenCaptures() {
+    startCapture();
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING);
+    assertEquals(STATE_WAITING_PRECAPTURE, stateMachine.getState());
+    assertActions(stateChange(STATE_WAITING_LOCK, STATE_WAITING_PRECAPTURE), PRECAPTURE);
+
+    // Results from before the trigger took effect.
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING);
+    assertEquals(STATE_WAITING_PRECAPTURE, stateMachine.getState());
+
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE);
+    assertEquals(STATE_WAITING_NON_PRECAPTURE, stateMachine.getState());
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE);
+    assertEquals(STATE_WAITING_NON_PRECAPTURE, stateMachine.getState());
+
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED);
+    assertEquals(STATE_PICTURE_TAKEN, stateMachine.getState());
+    assertActions(
+        stateChange(STATE_WAITING_LOCK, STATE_WAITING_PRECAPTURE),
+        PRECAPTURE,
+        stateChange(STATE_WAITING_PRECAPTURE, STATE_WAITING_NON_PRECAPTURE),
+        stateChange(STATE_WAITING_NON_PRECAPTURE, STATE_PICTURE_TAKEN),
+        CAPTURE);
+  }
+
+  @Test
+  public void flashRequired_countsAsPrecaptureStarted() {
+    stateMachine.setState(STATE_WAITING_PRECAPTURE);
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_FLASH_REQUIRED);
+    assertEquals(STATE_WAITING_NON_PRECAPTURE, stateMachine.getState());
+  }
+
+  @Test
+  public void noAeStateWhileWaitingForPrecapture_movesOn() {
+    stateMachine.setState(STATE_WAITING_PRECAPTURE);
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, RESULT_STATE_UNKNOWN);
+    assertEquals(STATE_WAITING_NON_PRECAPTURE, stateMachine.getState());
+    stateMachine.onResult(AF_STATE_FOCUSED_LOCKED, RESULT_STATE_UNKNOWN);
+    assertEquals(STATE_PICTURE_TAKEN, stateMachine.getState());
+  }
+
+  @Test
+  public void setState_reportsChangesOnly() {
+    stateMachine.setState(STATE_PREVIEW);
+    assertTrue(actions.isEmpty());
+    stateMachine.setState(STATE_WAITING_LOCK);
+    assertActions(stateChange(STATE_PREVIEW, STATE_WAITING_LOCK));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void setState_rejectsUnknownState() {
+    stateMachine.setState(STATE_PICTURE_TAKEN + 1);
+  }
+
+  /** Moves to STATE_WAITING_LOCK, as the capture sequence does once AF is triggered. */
+  private void startCapture() {
+    stateMachine.setState(STATE_WAITING_LOCK);
+    actions.clear();
+  }
+
+  private void assertActions(String... expected) {
+    assertEquals(Arrays.asList(expected), actions);
+  }
+
+  private static String stateChange(int oldState, int newState) {
+    return CaptureStateMachine.STATE_NAMES[oldState] + " -> "
+        + CaptureStateMachine.STATE_NAMES[newState];
+  }
+}